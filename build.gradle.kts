@@ -2,6 +2,7 @@ plugins {
     id("java")
     id ("org.springframework.boot") version "3.5.3"
     id("io.spring.dependency-management") version "1.1.0"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "com.mumeinosato"
@@ -22,6 +23,15 @@ dependencies {
         exclude(group = "org.springframework.boot", module = "spring-boot-starter-logging")
     }
     implementation("org.springframework.boot:spring-boot-starter-log4j2")
+    // 音声処理の状態を /actuator/prometheus で公開する（logback は上の除外と同じ理由で使わない）
+    implementation("org.springframework.boot:spring-boot-starter-web") {
+        exclude(group = "org.springframework.boot", module = "spring-boot-starter-logging")
+    }
+    implementation("org.springframework.boot:spring-boot-starter-actuator") {
+        exclude(group = "org.springframework.boot", module = "spring-boot-starter-logging")
+    }
+    implementation("io.micrometer:micrometer-core")
+    runtimeOnly("io.micrometer:micrometer-registry-prometheus")
 
     testImplementation("org.springframework.boot:spring-boot-starter-test")
     compileOnly("org.projectlombok:lombok:1.18.38")
@@ -38,6 +48,22 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// 音声処理のベンチマーク（src/jmh/java）。./gradlew jmh で実行し、結果は build/results/jmh に出力される
+jmh {
+    jmhVersion.set("1.37")
+    benchmarkMode.add("thrpt")
+    timeUnit.set("s")
+    fork.set(1)
+    warmupIterations.set(3)
+    warmup.set("2s")
+    iterations.set(5)
+    timeOnIteration.set("2s")
+    // 1 回あたりの割り当て量（gc.alloc.rate.norm）も出す
+    profilers.add("gc")
+    // ./gradlew jmh -Pjmh.includes=Capture のように対象を絞る
+    (project.findProperty("jmh.includes") as String?)?.let { includes.add(it) }
+}
+
 tasks.withType<JavaCompile> {
     options.encoding = "UTF-8"
 }
@@ -0,0 +1,36 @@
+package com.mumeinosato.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+
+/**
+ * ベンチマーク用の音声。発話と判定されるように、低い周波数の正弦波で作る。
+ */
+final class BenchmarkAudio {
+    // -12 dBFS 程度
+    private static final double AMPLITUDE = 8000;
+    private static final double FREQUENCY = 220;
+
+    private BenchmarkAudio() {}
+
+    // format の 16bit PCM（全チャンネル同じ値）
+    static byte[] tone(final AudioFormat format, final long milliseconds) {
+        final var channels = format.getChannels();
+        final var samples = (int) (format.getSampleRate() * milliseconds / 1000);
+        final var bytes = new byte[samples * channels * 2];
+        final var view = ByteBuffer.wrap(bytes).order(PcmConverter.byteOrder(format)).asShortBuffer();
+        for (int i = 0; i < samples; i++) {
+            final var value = (short) (AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * i / format.getSampleRate()));
+            for (int channel = 0; channel < channels; channel++)
+                view.put(value);
+        }
+        return bytes;
+    }
+
+    static float[] toneSamples(final int sampleRate, final long milliseconds) {
+        final var samples = new float[(int) (sampleRate * milliseconds / 1000)];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (float) (AMPLITUDE / Short.MAX_VALUE * Math.sin(2 * Math.PI * FREQUENCY * i / sampleRate));
+        return samples;
+    }
+}
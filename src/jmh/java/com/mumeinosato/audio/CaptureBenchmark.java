@@ -0,0 +1,79 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.config.DiscordSymbol;
+import net.dv8tion.jda.api.audio.AudioReceiveHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 受信した 20ms フレームを発話として溜めるまで。JDA の受信スレッドからユーザーごとに 50 回/秒呼ばれる部分。
+ */
+@State(Scope.Thread)
+public class CaptureBenchmark {
+    private static final long FRAME_MILLISECONDS = 20;
+
+    // 同じギルドで同時に話しているユーザー数
+    @Param({"1", "8"})
+    private int users;
+
+    private DataCheckScheduler scheduler;
+    private SharedAudioData sharedAudioData;
+    private AudioBufferPool bufferPool;
+    private String[] userIds;
+    private byte[] frame;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.scheduler = new DataCheckScheduler();
+        this.sharedAudioData = new SharedAudioData(PcmConverter.GEMINI_INPUT_FORMAT, this.scheduler.register("benchmark"),
+                new BoundedAudioQueue<>(DiscordSymbol.POOLED_BUFFERS, BoundedAudioQueue.Policy.DROP_OLDEST,
+                        null, SharedAudioData.AudioData::release));
+        this.bufferPool = new AudioBufferPool(
+                SpeakerBuffer.bytesFor(PcmConverter.GEMINI_INPUT_FORMAT, DiscordSymbol.TALK_MILLISECONDS + 1000), 1);
+        this.userIds = new String[this.users];
+        for (int i = 0; i < this.users; i++)
+            this.userIds[i] = "user-" + i;
+        this.frame = BenchmarkAudio.tone(AudioReceiveHandler.OUTPUT_FORMAT, FRAME_MILLISECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.scheduler.shutdown();
+    }
+
+    /**
+     * 1 フレームを追加する（Gemini 向けへの変換と発話判定を含む）。
+     * 話し終わりの判定は本番と同じく別スレッドで行われ、容量を使い切ったバッファは閉じて次のバッファに切り替わる。
+     */
+    @Benchmark
+    public void addAudioData() {
+        this.sharedAudioData.addAudioData(this.userIds[this.next++ % this.users], this.frame);
+
+        // 閉じた発話は処理したものとしてすぐにプールへ返す（溜まって捨てられる分の負荷を含めないため）
+        final var audioData = this.sharedAudioData.takeAudioData();
+        if (audioData != null)
+            audioData.release();
+    }
+
+    /**
+     * 1 秒分のフレームを 1 つの発話にまとめ、閉じて取り出すまで（以前の combineData に当たる部分）。
+     */
+    @Benchmark
+    public void assembleUtterance(final Blackhole blackhole) {
+        // 本番と同じく、変換器は発話ごとに作る
+        final var converter = new PcmConverter(AudioReceiveHandler.OUTPUT_FORMAT, PcmConverter.GEMINI_INPUT_FORMAT);
+        final var buffer = new SpeakerBuffer(AudioReceiveHandler.OUTPUT_FORMAT, converter, this.bufferPool.acquire());
+        for (int i = 0; i < 1000 / FRAME_MILLISECONDS; i++)
+            buffer.append(this.frame);
+        buffer.seal();
+        blackhole.consume(buffer.slice());
+        this.bufferPool.release(buffer.array());
+    }
+}
@@ -0,0 +1,71 @@
+package com.mumeinosato.audio;
+
+import net.dv8tion.jda.api.audio.AudioReceiveHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * JDA の 48kHz ステレオから Gemini 向けの 16kHz モノラルへの変換。
+ */
+@State(Scope.Thread)
+public class ConversionBenchmark {
+    private static final int FRAME_SAMPLES = 960;
+
+    private PcmConverter frameConverter;
+    private PcmResampler resampler;
+    private ShortBuffer frameIn;
+    private ShortBuffer frameOut;
+    private float[] resampleIn;
+    private float[] resampleOut;
+    private byte[] utterance;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final var source = AudioReceiveHandler.OUTPUT_FORMAT;
+        final var target = PcmConverter.GEMINI_INPUT_FORMAT;
+        this.frameConverter = new PcmConverter(source, target);
+        this.frameIn = ByteBuffer.wrap(BenchmarkAudio.tone(source, 20)).order(PcmConverter.byteOrder(source)).asShortBuffer();
+        this.frameOut = ByteBuffer.allocate(this.frameConverter.maxOutputSamples(this.frameIn.remaining()) * 2)
+                .order(PcmConverter.byteOrder(target)).asShortBuffer();
+
+        this.resampler = new PcmResampler((int) source.getSampleRate(), (int) target.getSampleRate());
+        this.resampleIn = BenchmarkAudio.toneSamples((int) source.getSampleRate(), 20);
+        this.resampleOut = new float[this.resampler.maxOutputLength(FRAME_SAMPLES)];
+
+        this.utterance = BenchmarkAudio.tone(source, 1000);
+    }
+
+    // 受信フレームごとの変換（SpeakerBuffer が行う、割り当てのない経路）
+    @Benchmark
+    public int convertFrame() {
+        this.frameIn.rewind();
+        this.frameOut.clear();
+        this.frameConverter.convert(this.frameIn, this.frameOut);
+        return this.frameOut.position();
+    }
+
+    // 1 チャンネル分の 20ms のリサンプリング
+    @Benchmark
+    public int resampleFrame() {
+        return this.resampler.process(this.resampleIn, FRAME_SAMPLES, this.resampleOut);
+    }
+
+    // 1 秒の発話をまとめて変換する（audio.converter=JAVA の経路）
+    @Benchmark
+    public byte[] convertUtterance() {
+        return new PcmConverter(AudioReceiveHandler.OUTPUT_FORMAT, PcmConverter.GEMINI_INPUT_FORMAT).convert(this.utterance);
+    }
+
+    // 1 秒の発話を ffmpeg に渡す WAV にする（audio.converter=FFMPEG の経路。ffmpeg の実行は含まない）
+    @Benchmark
+    public byte[] convertPcmToWav() throws IOException {
+        return AudioProcessor.convertPcmToWav(this.utterance);
+    }
+}
@@ -0,0 +1,78 @@
+package com.mumeinosato.audio;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * lavaplayer で再生する返答の WAV を登録して読み出すまで。
+ */
+@State(Scope.Thread)
+public class PlaybackBenchmark {
+    // lavaplayer の WAV の読み込みと同程度の単位
+    private static final int READ_SIZE = 4096;
+
+    private CustomInputStreamSourceManager sourceManager;
+    private ByteBuffer wav;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.sourceManager = new CustomInputStreamSourceManager();
+        // 2 秒程度の 1 文の返答
+        final var format = PcmConverter.GEMINI_OUTPUT_FORMAT;
+        final var pcm = BenchmarkAudio.tone(format, 2000);
+        final var output = new ByteArrayOutputStream();
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length / format.getFrameSize()),
+                AudioFileFormat.Type.WAVE, output);
+        this.wav = ByteBuffer.wrap(output.toByteArray());
+        this.chunk = new byte[READ_SIZE];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.sourceManager.shutdown();
+    }
+
+    // 登録してトラックとして読み込むまで（以前の Base64 の識別子への変換と復元に当たる部分）
+    @Benchmark
+    public Object registerAndLoad() {
+        final var key = this.sourceManager.register(this.wav);
+        return this.sourceManager.loadItem(null, new AudioReference(key, null));
+    }
+
+    @Benchmark
+    public long readStream() {
+        var total = 0L;
+        try (var stream = new CustomSeekableInputStream(this.wav)) {
+            int read;
+            while ((read = stream.read(this.chunk, 0, this.chunk.length)) > 0)
+                total += read;
+        }
+        return total;
+    }
+
+    // ヘッダーの解析などで 1 バイトずつ読む場合
+    @Benchmark
+    public long readStreamByByte() {
+        var total = 0L;
+        try (var stream = new CustomSeekableInputStream(this.wav)) {
+            int value;
+            while ((value = stream.read()) >= 0)
+                total += value;
+        }
+        return total;
+    }
+}
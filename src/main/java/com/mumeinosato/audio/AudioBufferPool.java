@@ -0,0 +1,45 @@
+package com.mumeinosato.audio;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 発話 1 回分の固定長バッファを使い回すプール。
+ * 取り出したバッファは処理が終わったら release で戻す（戻さなくても GC されるだけで問題はない）。
+ */
+public class AudioBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public AudioBufferPool(final int bufferSize, final int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public byte[] acquire() {
+        final var buffer = this.pool.poll();
+        if (buffer == null)
+            return new byte[this.bufferSize];
+
+        this.pooled.decrementAndGet();
+        return buffer;
+    }
+
+    public void release(final byte[] buffer) {
+        if (buffer == null || buffer.length != this.bufferSize)
+            return;
+
+        if (this.pooled.incrementAndGet() > this.maxPooled) {
+            this.pooled.decrementAndGet();
+            return;
+        }
+        this.pool.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+}
@@ -1,42 +1,114 @@
 package com.mumeinosato.audio;
 
+import com.mumeinosato.gemini.ResponseAudioListener;
+import com.mumeinosato.gemini.SessionManager;
+import com.mumeinosato.metrics.PipelineMetrics;
+import com.mumeinosato.metrics.UtteranceTrace;
 import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
 import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
-import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
 import net.dv8tion.jda.api.audio.AudioReceiveHandler;
 import net.dv8tion.jda.api.audio.AudioSendHandler;
 import net.dv8tion.jda.api.audio.UserAudio;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.Base64;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class AudioHandler implements AudioReceiveHandler, AudioSendHandler {
+public class AudioHandler implements AudioReceiveHandler, AudioSendHandler, ResponseAudioListener {
     private static final Logger logger = LogManager.getLogger(AudioHandler.class);
 
     private final AudioProcessor audioProcessor;
     private final SharedAudioData sharedAudioData;
+    private final AudioPlayerPool playerPool;
     private final AudioPlayerManager playerManager;
+    private final CustomInputStreamSourceManager sourceManager;
     private final AudioPlayer audioPlayer;
     private final String guildId;
-    private AudioFrame lastFrame;
-    private boolean isProcessingAudio = false;
+    // lavaplayer のフレームはこのバッファに書き込ませて、フレームごとの確保をしない
+    private final ByteBuffer frameBuffer = ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+    private final MutableAudioFrame frame = new MutableAudioFrame();
+    // エンコード済みの 20ms ごとの Opus パケット。lavaplayer のトラックより優先して送る
+    private final Queue<ByteBuffer> opusPackets = new ConcurrentLinkedQueue<>();
+    private ByteBuffer nextPacket;
+    // Gemini が音声で返答する場合の、返答中のエンコーダー（返答ごとに作り直す）。エンコードは再生レーンで行う
+    // 送信スレッドからも（再生が終わったかどうかの判断に）参照する
+    private volatile OpusReplyEncoder responseEncoder;
+    // responseEncoder を作ったときの世代。遮られた後の返答には使い回さない
+    private long responseGeneration;
+    // TTS の返答をエンコード中（再生レーンで 1 件ずつ行う）
+    private volatile boolean encodingReply;
+    // 返答を再生中かどうか（再生の開始時に立て、音声が尽きたときか話し始めたユーザーに遮られたときに下ろす）
+    private final AtomicBoolean playing = new AtomicBoolean();
+    // 返答を遮るたびに増やす。準備中の返答は世代が変わっていたら送信キューに入れずにやめる
+    private final AtomicLong playbackGeneration = new AtomicLong();
+    // 記録中の発話の、返答の最初のパケット（lavaplayer で再生する場合は null）。Discord に渡した時点で記録して外す
+    private volatile FirstFrame firstFrame;
+
+    private record FirstFrame(UtteranceTrace trace, ByteBuffer packet) {}
+    private volatile boolean closed;
     private final AudioQueueManager audioQueueManager;
+    private final SessionManager sessionManager;
+    private final OpusPacketStore packetStore;
+    private final PipelineMetrics pipelineMetrics;
+    // ストリーミング送信中のユーザー（Gemini への入力は 1 本なので同時に 1 人まで）
+    private final AtomicReference<String> streamingUserId = new AtomicReference<>();
+    // 話し終わった発話の処理（変換・送信）と返答の再生準備は、共有プール上のこのギルド専用のレーンで順に行う
+    private final SerialExecutor utteranceLane;
+    private final SerialExecutor playbackLane;
 
 
-    public AudioHandler(final AudioProcessor audioProcessor, SharedAudioData sharedAudioData, final AudioPlayerManager playerManager, final String guildId, final AudioQueueManager audioQueueManager) {
+    public AudioHandler(final AudioProcessor audioProcessor, SharedAudioData sharedAudioData, final AudioPlayerPool playerPool, final String guildId, final AudioQueueManager audioQueueManager, final SessionManager sessionManager, final OpusPacketStore packetStore, final PipelineExecutors executors, final PipelineMetrics pipelineMetrics) {
         this.audioProcessor = audioProcessor;
         this.sharedAudioData = sharedAudioData;
-        this.playerManager = playerManager;
-        this.audioPlayer = playerManager.createPlayer();
+        this.playerPool = playerPool;
+        this.playerManager = playerPool.getPlayerManager();
+        this.sourceManager = this.playerManager.source(CustomInputStreamSourceManager.class);
+        this.audioPlayer = playerPool.acquire();
+        this.frame.setBuffer(this.frameBuffer);
         this.guildId = guildId;
         this.audioQueueManager = audioQueueManager;
-        startDiscordAudioWorker();
+        this.sessionManager = sessionManager;
+        this.packetStore = packetStore;
+        this.pipelineMetrics = pipelineMetrics;
+
+        if (sessionManager.isStreamingInput()) {
+            if (sharedAudioData.getCaptureFormat().matches(PcmConverter.GEMINI_INPUT_FORMAT))
+                sharedAudioData.setStreamListener(this::streamUserAudio);
+            else
+                logger.warn("Streaming input requires in-memory conversion, falling back to batch mode");
+        }
+
+        this.utteranceLane = executors.newUtteranceLane();
+        this.playbackLane = executors.newPlaybackLane();
+        sharedAudioData.setUtteranceListener(() -> this.utteranceLane.execute(this::drainUtterances));
+        sharedAudioData.setSpeechStartListener(this::bargeIn);
+        // 返答は 1 件ずつレーンに載せるので、前の返答を読み終えてから次を読む
+        audioQueueManager.registerGuild(guildId, () -> this.playbackLane.execute(this::playNextReply));
+
+        if (sessionManager.isAudioResponse())
+            sessionManager.setResponseAudioListener(guildId, this);
     }
 
     @Override
@@ -51,83 +123,298 @@ public class AudioHandler implements AudioReceiveHandler, AudioSendHandler {
 
     @Override
     public void handleUserAudio(final UserAudio userAudio) {
+        this.pipelineMetrics.frameReceived();
         final var receiveData = userAudio.getAudioData(1.0);
         this.sharedAudioData.addAudioData(userAudio.getUser().getId(), receiveData);
 
-        // handleUserAudioでは音声データの追加のみ行い、移動チェックはcanProvideで行う
+        // handleUserAudioでは音声データの追加のみ行い、話し終わった発話は utteranceExecutor で処理する
+        // ストリーミング時は変換済みのフレームが streamUserAudio に渡される
+    }
+
+    private void streamUserAudio(final String userId, final byte[] audioChunk) {
+        if (this.streamingUserId.compareAndSet(null, userId)) {
+            logger.info("Start streaming audio for user: {}", userId);
+            this.sessionManager.startAudioStream(this.guildId);
+        } else if (!userId.equals(this.streamingUserId.get())) {
+            // 他のユーザーが送信中の間は通常どおり溜めて、話し終わりにまとめて送る
+            return;
+        }
+
+        this.sessionManager.streamAudio(this.guildId, audioChunk);
     }
 
     @Override
     public boolean canProvide() {
-        // 音声処理中でない場合のみ新しい音声データを処理
-        if (!isProcessingAudio) {
-            try {
-                // 定期的にデータの移動をチェック（話し終わり判定）
-                this.sharedAudioData.checkAndMoveData();
+        // プールに返したプレイヤーは他のギルドが使っているかもしれないので触らない
+        if (this.closed)
+            return false;
+
+        // JDA の送信スレッドから 20ms ごとに呼ばれるので、用意済みのフレームを取り出すだけにする
+        this.nextPacket = this.opusPackets.poll();
+        if (this.nextPacket != null) {
+            this.markFirstFrame(this.nextPacket);
+            this.pipelineMetrics.framePolled(true, true);
+            return true;
+        }
+
+        final var hasFrame = this.audioPlayer.provide(this.frame);
+        if (hasFrame)
+            this.markFirstFrame(null);
+        // エンコード中やトラックの再生中なのにフレームがなければ、間に合わなかったとみなす
+        this.pipelineMetrics.framePolled(hasFrame, hasFrame || this.isReplyPending());
+
+        // 音声フレームがなく、エンコード中の返答も送信待ちのパケットもなければ処理完了とみなす
+        // （受信しながらエンコードする返答は、次のパケットが届くまでフレームがないことがある）
+        if (!hasFrame && !this.isReplyPending() && this.opusPackets.isEmpty() && this.playing.compareAndSet(true, false))
+            logger.info("Audio playback finished, ready for next audio");
+
+        return hasFrame;
+    }
+
+    private boolean isReplyPending() {
+        return this.encodingReply || this.responseEncoder != null || this.audioPlayer.getPlayingTrack() != null;
+    }
+
+    // 前の返答の残りのパケットでは記録しない
+    private void markFirstFrame(final ByteBuffer packet) {
+        final var pending = this.firstFrame;
+        if (pending == null || pending.packet() != packet)
+            return;
+
+        this.firstFrame = null;
+        if (pending.trace().mark(UtteranceTrace.Stage.FIRST_FRAME))
+            logger.debug("First reply frame sent {} ms after speech end", pending.trace().elapsedMillis(UtteranceTrace.Stage.FIRST_FRAME));
+    }
+
+    // 発話に対する最初の返答の再生準備ができた
+    private void markPlaybackReady(final UtteranceTrace trace, final ByteBuffer firstPacket) {
+        if (trace != null && trace.mark(UtteranceTrace.Stage.PLAYBACK_READY))
+            this.firstFrame = new FirstFrame(trace, firstPacket);
+    }
 
-                final var audioData = this.sharedAudioData.takeAudioData();
-                if (audioData != null) {
-                    isProcessingAudio = true;
+    /**
+     * 返答の再生中にユーザーが話し始めたら、返答を止めてその発話を優先する。
+     * JDA の受信スレッドから、発話と判定された最初のフレームで呼ばれる（ストリーミング送信はこの後に始まる）。
+     *
+     * <p>新しい返答の元になる Gemini のターンと読み上げ待ちの文を先に取り消してから、再生中の音声と処理待ちの発話を捨てる。
+     */
+    private void bargeIn(final String userId) {
+        if (this.closed || !this.playing.compareAndSet(true, false))
+            return;
+
+        this.playbackGeneration.incrementAndGet();
+        this.firstFrame = null;
+        final var turns = this.sessionManager.cancelTurns(this.guildId);
+        this.audioProcessor.cancelSpeech(this.guildId);
+        final var replies = this.audioQueueManager.discardDiscord(this.guildId);
+        // 再生中に溜まった発話は、遮られた返答を前提にしているので送らない
+        final var utterances = this.sharedAudioData.discardQueuedAudio() + this.audioQueueManager.discardGemini(this.guildId);
+
+        this.discardResponseEncoder();
+        this.opusPackets.clear();
+        this.audioPlayer.stopTrack();
+        logger.info("User {} interrupted the reply ({} turns, {} replies and {} utterances discarded)",
+                userId, turns, replies, utterances);
+    }
+
+    private void drainUtterances() {
+        SharedAudioData.AudioData audioData;
+        while ((audioData = this.sharedAudioData.takeAudioData()) != null) {
+            try {
+                if (this.streamingUserId.compareAndSet(audioData.getId(), null)) {
+                    // 送信済みの発話なので終了だけ伝える
+                    logger.info("Streaming finished for user: {}", audioData.getId());
+                    this.sessionManager.endAudioStream(this.guildId);
+                } else {
                     logger.info("Processing complete audio data for user: {} (speech finished)", audioData.getId());
-                    this.audioProcessor.processAudio(guildId, audioData.getId(), audioData.getData());
-                    /*
-                    final var replyData = this.audioProcessor.processAudio(guildId, audioData.getId(), audioData.getData());
-                    if (replyData != null && replyData.length > 0) {
-                        final var base64String = Base64.getEncoder().encodeToString(replyData);
-                        this.loadAndPlayTrack(base64String);
-                    } else {
-                        logger.info("Audio processing returned empty data for user: {}", audioData.getId());
-                        isProcessingAudio = false;
-                    }
-                    */
+                    this.audioProcessor.processAudio(guildId, audioData);
                 }
             } catch (final Exception e) {
-                logger.error("Error in canProvide: {}", e.getMessage(), e);
-                isProcessingAudio = false;
+                logger.error("Error processing utterance: {}", e.getMessage(), e);
+            } finally {
+                audioData.release();
             }
         }
+    }
 
-        this.lastFrame = this.audioPlayer.provide();
+    // Gemini の受信スレッドではエンコードせず、再生レーンに渡す（レーンの中では届いた順に処理される）
+    @Override
+    public void onAudio(final byte[] pcm) {
+        final var generation = this.playbackGeneration.get();
+        this.playbackLane.execute(() -> this.encodeResponse(generation, pcm));
+    }
 
-        // 音声フレームがない場合は処理完了とみなす
-        if (this.lastFrame == null && isProcessingAudio) {
-            isProcessingAudio = false;
-            logger.info("Audio playback finished, ready for next audio");
+    @Override
+    public void onTurnComplete() {
+        this.playbackLane.execute(this::finishResponse);
+    }
+
+    private synchronized void encodeResponse(final long generation, final byte[] pcm) {
+        // レーンで待っている間に遮られた返答の残りは捨てる
+        if (this.closed || this.playbackGeneration.get() != generation)
+            return;
+
+        try {
+            if (this.responseEncoder != null && this.responseGeneration != generation)
+                this.discardResponseEncoder();
+            if (this.responseEncoder == null) {
+                this.responseEncoder = new OpusReplyEncoder(PcmConverter.GEMINI_OUTPUT_FORMAT, this.playerManager.getConfiguration(),
+                        packet -> this.offerPacket(generation, ByteBuffer.wrap(packet), null));
+                this.responseGeneration = generation;
+                this.playing.set(true);
+                logger.info("Receiving audio response from Gemini");
+            }
+            // 最初のチャンクから順に送信キューへ入れるので、返答が終わる前に再生が始まる
+            this.responseEncoder.encode(pcm);
+        } catch (final LinkageError e) {
+            logger.error("Opus encoder is not available: {}", e.getMessage(), e);
         }
+    }
+
+    private synchronized void finishResponse() {
+        if (this.responseEncoder == null)
+            return;
+
+        this.responseEncoder.flush();
+        this.responseEncoder.close();
+        this.responseEncoder = null;
+    }
+
+    // 遮られた返答や退出時の返答の残りは、エンコードせずに捨てる
+    private synchronized void discardResponseEncoder() {
+        if (this.responseEncoder == null)
+            return;
+
+        this.responseEncoder.close();
+        this.responseEncoder = null;
+    }
+
+    // 退出時に呼ぶ。プレイヤーはプールに返し、このギルドの処理待ちはすべて捨てる
+    public void close() {
+        this.closed = true;
+        this.sessionManager.removeResponseAudioListener(this.guildId, this);
+        this.sharedAudioData.setUtteranceListener(null);
+        this.sharedAudioData.setStreamListener(null);
+        this.sharedAudioData.setSpeechStartListener(null);
+        this.audioQueueManager.removeGuild(this.guildId);
+        this.utteranceLane.close();
+        this.playbackLane.close();
+        // レーンは閉じたので、エンコード中の返答の残りは送らずに捨てる
+        this.discardResponseEncoder();
+        this.opusPackets.clear();
+        this.playerPool.release(this.audioPlayer);
+        logger.info("Audio handler closed for guild: {}", guildId);
+    }
 
-        return this.lastFrame != null;
+    private void playNextReply() {
+        final var reply = this.audioQueueManager.pollDiscord(this.guildId);
+        if (reply != null)
+            this.playReply(reply);
     }
 
-    private void startDiscordAudioWorker() {
-        Thread worker = new Thread(() -> {
-            while(true){
-                try {
-                    final var replyData = audioQueueManager.dequeueDiscord();
-                    final var base64String = Base64.getEncoder().encodeToString(replyData);
-                    if (base64String != null && !base64String.isEmpty()){
-                        loadAndPlayTrack(base64String);
+    /**
+     * WAV を受信しながら Opus パケットにエンコードし、送信キューに追加する。
+     * 以前に同じ音声をエンコードしていれば、保存しておいたパケットをそのまま送る。
+     * WAV として読めない場合や 16bit PCM 以外の場合、Opus のネイティブライブラリが使えない場合は lavaplayer で再生する。
+     */
+    private void playReply(final ReplyAudio reply) {
+        final var generation = this.playbackGeneration.get();
+        final var trace = reply.getTrace();
+        // ハッシュを計算するには音声全体が必要なので、確認できるのはメモリ上にそろっている場合だけ。
+        // ストリームで届いた返答は下で保存だけ行い、同じ音声が TtsCache からメモリ上で返されたときに使われる
+        final var buffer = reply.getBuffer();
+        if (buffer != null && this.packetStore.play(OpusPacketStore.hash(buffer), packet -> this.offerPacket(generation, packet, trace))) {
+            this.playing.set(true);
+            logger.info("Reply played from stored Opus packets");
+            return;
+        }
+
+        // 受信途中のストリームは読みながらハッシュを計算し、エンコードし終えたら保存する
+        final var digest = OpusPacketStore.sha256();
+        try (var stream = new BufferedInputStream(new DigestInputStream(reply.openStream(), digest))) {
+            final AudioInputStream audioStream;
+            try {
+                audioStream = AudioSystem.getAudioInputStream(stream);
+            } catch (final UnsupportedAudioFileException e) {
+                // 判別に失敗した場合はストリームが先頭に戻されているので、そのまま lavaplayer に渡す
+                logger.debug("Reply is not a supported WAV, falling back to lavaplayer: {}", e.getMessage());
+                loadAndPlayTrack(this.sourceManager.register(stream.readAllBytes()), generation, trace);
+                return;
+            }
+
+            final var packets = new ArrayList<byte[]>();
+            final OpusReplyEncoder encoder;
+            try {
+                encoder = new OpusReplyEncoder(audioStream.getFormat(), this.playerManager.getConfiguration(), packet -> {
+                    packets.add(packet);
+                    this.offerPacket(generation, ByteBuffer.wrap(packet), trace);
+                });
+            } catch (final IllegalArgumentException | LinkageError e) {
+                logger.debug("Reply cannot be encoded directly, falling back to lavaplayer: {}", e.getMessage());
+                final var wav = new ByteArrayOutputStream();
+                AudioSystem.write(audioStream, AudioFileFormat.Type.WAVE, wav);
+                loadAndPlayTrack(this.sourceManager.register(wav.toByteArray()), generation, trace);
+                return;
+            }
+
+            try (encoder) {
+                this.playing.set(true);
+                this.encodingReply = true;
+
+                // 届いた分から順にエンコードするので、本文を受信しきる前に再生が始まる
+                final var chunk = new byte[audioStream.getFormat().getFrameSize() * 4800];
+                int read;
+                while ((read = audioStream.read(chunk)) > 0) {
+                    // 遮られたら残りは受信もしない（途中までの音声は保存しない）
+                    if (this.playbackGeneration.get() != generation) {
+                        logger.debug("Reply interrupted while encoding");
+                        return;
                     }
-                } catch (InterruptedException e) {
-                    break;
+                    encoder.encode(chunk, 0, read);
                 }
+                encoder.flush();
+            } finally {
+                this.encodingReply = false;
             }
-        });
-        worker.setDaemon(true);
-        worker.start();
+            // WAV の後ろに残ったデータも読み切る（接続の再利用やキャッシュへの保存は最後まで読んだときに行われる）
+            stream.transferTo(OutputStream.nullOutputStream());
+            this.packetStore.put(HexFormat.of().formatHex(digest.digest()), packets);
+            logger.info("Reply encoded for direct Opus playback");
+        } catch (final IOException e) {
+            logger.error("Error playing reply: {}", e.getMessage(), e);
+        }
     }
 
-    private void loadAndPlayTrack(final String trackString) {
+    // 遮られた後に届いた分は送らない
+    private void offerPacket(final long generation, final ByteBuffer packet, final UtteranceTrace trace) {
+        if (this.playbackGeneration.get() != generation)
+            return;
+
+        this.markPlaybackReady(trace, packet);
+        this.opusPackets.add(packet);
+        // 送信スレッドが直前に再生の終わりとみなしていても、遮れるようにし直す
+        this.playing.set(true);
+    }
+
+    private void loadAndPlayTrack(final String key, final long generation, final UtteranceTrace trace) {
         // 現在再生中のトラックを停止
         if (this.audioPlayer.getPlayingTrack() != null) {
             this.audioPlayer.stopTrack();
             logger.debug("Stopped current track before loading new one");
         }
 
-        this.playerManager.loadItem(trackString, new AudioLoadResultHandler() {
+        this.playerManager.loadItem(key, new AudioLoadResultHandler() {
 
             @Override
             public void trackLoaded(final AudioTrack track) {
+                // 読み込み中に退出した場合、プレイヤーはすでに他のギルドに渡っている可能性がある
+                // 読み込み中に返答が遮られた場合も再生しない
+                if (AudioHandler.this.closed || AudioHandler.this.playbackGeneration.get() != generation)
+                    return;
+
                 logger.info("Track loaded successfully, starting playback");
+                AudioHandler.this.markPlaybackReady(trace, null);
+                AudioHandler.this.playing.set(true);
                 AudioHandler.this.audioPlayer.playTrack(track);
             }
             
@@ -138,22 +425,26 @@ public class AudioHandler implements AudioReceiveHandler, AudioSendHandler {
 
             @Override
             public void noMatches() {
-                logger.warn("No matches found for track string");
-                isProcessingAudio = false; // 処理失敗時にフラグをリセット
+                logger.warn("No matches found for track: {}", key);
+                AudioHandler.this.sourceManager.unregister(key);
+                AudioHandler.this.playing.set(false); // 処理失敗時にフラグをリセット
             }
 
             @Override
             public void loadFailed(final FriendlyException e) {
                 logger.error("Failed to load track: {}", e.getMessage(), e);
-                isProcessingAudio = false; // 処理失敗時にフラグをリセット
+                AudioHandler.this.sourceManager.unregister(key);
+                AudioHandler.this.playing.set(false); // 処理失敗時にフラグをリセット
             }
         });
     }
 
     @Override
     public ByteBuffer provide20MsAudio() {
+        if (this.nextPacket != null)
+            return this.nextPacket;
 
-        return ByteBuffer.wrap(this.lastFrame.getData());
+        return this.frameBuffer.flip();
     }
 
     @Override
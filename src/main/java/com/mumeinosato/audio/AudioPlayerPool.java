@@ -0,0 +1,96 @@
+package com.mumeinosato.audio;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManagers;
+import com.sedmelluq.discord.lavaplayer.track.playback.NonAllocatingAudioFrameBuffer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * アプリケーション全体で 1 つの lavaplayer の AudioPlayerManager と、ギルド間で使い回す AudioPlayer のプール。
+ * lavaplayer のスレッドプールはこのマネージャーの分だけなので、参加と退出を繰り返してもスレッドは増えない。
+ */
+@Component
+public class AudioPlayerPool {
+    private static final Logger logger = LogManager.getLogger(AudioPlayerPool.class);
+
+    // プレイヤーごとに先読みしておく音声の長さ。返答は短いので lavaplayer の既定（5 秒）より小さくし、停止もすぐ効くようにする
+    @Value("${lavaplayer.frame-buffer-ms:1000}")
+    private int frameBufferMillis;
+
+    // 0〜10。返答音声の Opus エンコードの品質
+    @Value("${lavaplayer.opus-quality:10}")
+    private int opusQuality;
+
+    // 退出したギルドから返されたプレイヤーを、次の参加のために残しておく数
+    @Value("${lavaplayer.idle-players:4}")
+    private int maxIdlePlayers;
+
+    @Getter
+    private final AudioPlayerManager playerManager = new DefaultAudioPlayerManager();
+    private final Deque<AudioPlayer> idlePlayers = new ArrayDeque<>();
+    private int activePlayers;
+
+    @PostConstruct
+    public void initialize() {
+        this.playerManager.setFrameBufferDuration(this.frameBufferMillis);
+        final var configuration = this.playerManager.getConfiguration();
+        configuration.setOpusEncodingQuality(this.opusQuality);
+        configuration.setResamplingQuality(AudioConfiguration.ResamplingQuality.HIGH);
+        // フレームごとに配列を確保せず、プレイヤーごとに 1 つのリングバッファを使い回す
+        configuration.setFrameBufferFactory(NonAllocatingAudioFrameBuffer::new);
+
+        this.playerManager.registerSourceManager(new CustomInputStreamSourceManager());
+        AudioSourceManagers.registerLocalSource(this.playerManager);
+    }
+
+    public synchronized AudioPlayer acquire() {
+        final var player = this.idlePlayers.poll();
+        this.activePlayers++;
+        return player != null ? player : this.playerManager.createPlayer();
+    }
+
+    /**
+     * 再生を止めて状態を戻し、プールに返す。プールが一杯の場合は破棄する。
+     * 返したプレイヤーはもう使わないこと。
+     */
+    public synchronized void release(final AudioPlayer player) {
+        this.activePlayers--;
+        player.stopTrack();
+        player.setPaused(false);
+        player.setVolume(100);
+        player.setFilterFactory(null);
+
+        if (this.idlePlayers.size() < this.maxIdlePlayers)
+            this.idlePlayers.push(player);
+        else
+            player.destroy();
+    }
+
+    public synchronized int getActivePlayers() {
+        return this.activePlayers;
+    }
+
+    public synchronized int getIdlePlayers() {
+        return this.idlePlayers.size();
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        logger.info("Shutting down audio players ({} active, {} idle)", this.activePlayers, this.idlePlayers.size());
+        this.idlePlayers.forEach(AudioPlayer::destroy);
+        this.idlePlayers.clear();
+        this.playerManager.shutdown();
+    }
+}
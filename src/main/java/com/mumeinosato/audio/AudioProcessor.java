@@ -1,6 +1,13 @@
 package com.mumeinosato.audio;
 
 import com.mumeinosato.gemini.SessionManager;
+import com.mumeinosato.metrics.PipelineMetrics;
+import com.mumeinosato.metrics.UtteranceTrace;
+import com.mumeinosato.tts.TtsCache;
+import com.mumeinosato.tts.TtsClient;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import net.dv8tion.jda.api.audio.AudioReceiveHandler;
 import net.dv8tion.jda.api.audio.AudioSendHandler;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.logging.log4j.LogManager;
@@ -9,33 +16,173 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.PreDestroy;
 import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import java.io.*;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Component
 public class AudioProcessor {
     private static final Logger logger = LogManager.getLogger(AudioProcessor.class);
 
-    @Value("${tts_server.url}")
-    private String ttsServerUrl;
+    // JAVA: メモリ上でリサンプル / FFMPEG: 従来の ffmpeg プロセスによる変換
+    @Value("${audio.converter:JAVA}")
+    private ConverterType converterType;
 
     @Autowired
     private SessionManager sessionManager;
     @Autowired
     private AudioQueueManager audioQueueManager;
+    @Autowired
+    private TtsClient ttsClient;
+    @Autowired
+    private TtsCache ttsCache;
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    // 文ごとの音声合成は全ギルドで共有するプールで並行して行い、再生はギルドごとの playbackChain で届いた順に揃える
+    private static final int TTS_PARALLELISM = 2;
+    private final ExecutorService ttsExecutor = Executors.newFixedThreadPool(TTS_PARALLELISM);
+    private final Map<String, CompletableFuture<Void>> playbackChains = new ConcurrentHashMap<>();
+    // 読み上げを取り消すたびに増やす。合成中だった文は、終わった時点で世代が変わっていれば捨てる
+    private final Map<String, Long> speechGenerations = new ConcurrentHashMap<>();
+    private Thread geminiWorker;
 
-    public void processAudio(final String guildId, String userId, final byte[] audioData) {
-        logger.info("Processing complete speech from user: {} (data size: {} bytes)", userId, audioData.length);
+    public AudioProcessor() {}
+
+    public AudioProcessor(final SessionManager sessionManager, final AudioQueueManager audioQueueManager, final TtsClient ttsClient,
+                          final TtsCache ttsCache, final PipelineMetrics pipelineMetrics) {
+        this.converterType = ConverterType.JAVA;
+        this.sessionManager = sessionManager;
+        this.audioQueueManager = audioQueueManager;
+        this.ttsClient = ttsClient;
+        this.ttsCache = ttsCache;
+        this.pipelineMetrics = pipelineMetrics;
+        this.startWorkers();
+    }
+
+    @PostConstruct
+    public void startWorkers() {
+        // 返答は文ごとに届くので、バッチ・ストリーミングのどちらでもリスナー経由で読み上げる
+        sessionManager.setSegmentListener(this::speak);
+        startGeminiWorker();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ttsExecutor.shutdownNow();
+        if (geminiWorker != null)
+            geminiWorker.interrupt();
+    }
+
+    private void startGeminiWorker() {
+        geminiWorker = new Thread(() -> {
+            while (true) {
+                try {
+                    final var audioData = audioQueueManager.dequeueGemini();
+                    final var guildId = audioData.getGuildId();
+                    final var response = sessionManager.sendAudioData(guildId, audioData.getData(), audioData.getTrace());
+                    if (response == null)
+                        continue;
+
+                    response.thenAccept(text -> logger.debug("Gemini turn finished for guild {}: {}", guildId, text))
+                            .exceptionally(e -> {
+                                logger.warn("No response from Gemini: {}", e.getMessage());
+                                return null;
+                            });
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        });
+        geminiWorker.setDaemon(true);
+        geminiWorker.start();
+    }
+
+    // Gemini の受信スレッドから文ごとに呼ばれる。trace には最初の文の合成の時刻を記録する
+    private void speak(final String guildId, final String text, final UtteranceTrace trace) {
+        if (text == null || text.isEmpty())
+            return;
+
+        // キャッシュにあれば TTS サーバーには問い合わせない
+        final var key = ttsCache.key(text, ttsClient.getUrl());
+        final var cached = ttsCache.get(key);
+        if (cached != null && trace != null) {
+            trace.mark(UtteranceTrace.Stage.TTS_REQUEST);
+            trace.mark(UtteranceTrace.Stage.TTS_FIRST_BYTE);
+        }
+        // 応答ヘッダーが届いた時点でストリームのまま再生側へ渡し、受信しながら再生する
+        final CompletableFuture<ReplyAudio> replyData = cached != null
+                ? CompletableFuture.completedFuture(ReplyAudio.of(cached).withTrace(trace))
+                : CompletableFuture.supplyAsync(() -> openTtsStream(key, text, trace), ttsExecutor);
+        final long generation = speechGenerations.getOrDefault(guildId, 0L);
+        // 合成が先に終わっても、同じギルドの前の文を再生キューに入れるまで待つ
+        playbackChains.compute(guildId, (id, chain) ->
+                (chain != null ? chain : CompletableFuture.<Void>completedFuture(null))
+                        .thenCombine(replyData, (previous, data) -> data)
+                        .handle((data, e) -> {
+                            if (e != null)
+                                logger.error("Error synthesizing segment for guild {}: {}", guildId, e.getMessage(), e);
+                            else if (data != null && speechGenerations.getOrDefault(guildId, 0L) != generation)
+                                data.discard();
+                            else if (data != null)
+                                audioQueueManager.enqueueDiscord(guildId, data);
+                            return null;
+                        }));
+    }
+
+    /**
+     * guildId の読み上げ待ちと合成中の文をすべて取り消す（ユーザーが話し始めて返答を遮った場合）。
+     * 合成中の文は TTS サーバーへの問い合わせが終わった時点で捨てる。
+     */
+    public void cancelSpeech(final String guildId) {
+        speechGenerations.merge(guildId, 1L, Long::sum);
+        playbackChains.remove(guildId);
+    }
+
+    // 退出したギルドの読み上げ待ちを捨てる（合成中の文は再生キューがないので破棄される）
+    public void removeGuild(final String guildId) {
+        playbackChains.remove(guildId);
+        speechGenerations.remove(guildId);
+    }
+
+    private ReplyAudio openTtsStream(final String key, final String text, final UtteranceTrace trace) {
+        try {
+            if (trace != null)
+                trace.mark(UtteranceTrace.Stage.TTS_REQUEST);
+            final var start = System.nanoTime();
+            final var stream = ttsClient.openStream(text);
+            pipelineMetrics.ttsResponded(System.nanoTime() - start);
+            if (trace != null)
+                trace.mark(UtteranceTrace.Stage.TTS_FIRST_BYTE);
+            // 最後まで再生された音声はキャッシュに追加される
+            return ReplyAudio.of(ttsCache.record(key, stream)).withTrace(trace);
+        } catch (IOException e) {
+            pipelineMetrics.ttsFailed();
+            logger.error("Error calling TTS API: {}", e.getMessage(), e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // SharedAudioData が受信時に変換しておくフォーマット（ffmpeg 使用時は受信フォーマットのまま溜める）
+    public AudioFormat getCaptureFormat() {
+        return converterType == ConverterType.FFMPEG ? AudioReceiveHandler.OUTPUT_FORMAT : PcmConverter.GEMINI_INPUT_FORMAT;
+    }
+
+    public void processAudio(final String guildId, final SharedAudioData.AudioData audioData) {
+        final var userId = audioData.getId();
+        logger.info("Processing complete speech from user: {} (data size: {} bytes)", userId, audioData.size());
 
         try {
             final var audioDir = new File("audio");
@@ -46,8 +193,17 @@ public class AudioProcessor {
                 }
             }
 
-            final var convertedPcmData = convertAudioFormat(convertPcmToWav(audioData));
-            audioQueueManager.enqueueGemini(convertedPcmData);
+            // 話し終わりから返答の再生までの各段の遅延を記録する
+            final var trace = pipelineMetrics.attach(audioData.getTrace());
+
+            // 受信時に変換済みであればそのまま送る
+            final var pcmData = audioData.toByteArray();
+            audioData.release();
+            final var convertedPcmData = audioData.getFormat().matches(PcmConverter.GEMINI_INPUT_FORMAT)
+                    ? pcmData
+                    : convertAudioFormat(pcmData);
+            trace.mark(UtteranceTrace.Stage.CONVERTED);
+            audioQueueManager.enqueueGemini(guildId, userId, convertedPcmData, trace);
 
             //String sent = sessionManager.sendAudioData(guildId, convertedPcmData);
             //if (sent != null) {
@@ -70,7 +226,15 @@ public class AudioProcessor {
         }
     }
 
-    private byte[] convertAudioFormat(byte[] discordWavData) throws IOException, InterruptedException {
+    private byte[] convertAudioFormat(final byte[] discordPcmData) throws IOException, InterruptedException {
+        if (converterType == ConverterType.FFMPEG)
+            return convertAudioFormatWithFfmpeg(convertPcmToWav(discordPcmData));
+
+        // JDA の 48kHz ステレオを Gemini 向けの 16kHz モノラルへ一時ファイルなしで変換
+        return new PcmConverter(AudioReceiveHandler.OUTPUT_FORMAT, PcmConverter.GEMINI_INPUT_FORMAT).convert(discordPcmData);
+    }
+
+    private byte[] convertAudioFormatWithFfmpeg(byte[] discordWavData) throws IOException, InterruptedException {
         Path inputFile = Files.createTempFile("discord", ".wav");
         Path outputFile = Files.createTempFile("gemini", ".pcm");
 
@@ -107,31 +271,8 @@ public class AudioProcessor {
         }
     }
 
-    public byte[] callTTSApi(String text) {
-        try {
-            HttpClient httpClient = HttpClient.newHttpClient();
-            String base64Text = Base64.getEncoder().encodeToString(text.getBytes("UTF-8"));
-            String url = ttsServerUrl + "?text=" + java.net.URLEncoder.encode(base64Text, "UTF-8");
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .GET()
-                    .build();
-
-            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
-            if (response.statusCode() == 200) {
-                logger.info("TTS API call successful, response size: {} bytes", response.body().length);
-                return response.body();
-            } else {
-                logger.error("TTS API call failed with status code: {}", response.statusCode());
-                return null;
-            }
-        } catch (IOException | InterruptedException e) {
-            logger.error("Error calling TTS API: {}", e.getMessage(), e);
-            return null;
-        }
-    }
-
-    private byte[] convertPcmToWav(final byte[] pcmData) throws IOException {
+    // ベンチマークから呼べるようにパッケージ内に公開する
+    static byte[] convertPcmToWav(final byte[] pcmData) throws IOException {
 
         try (var wavOutputStream = new ByteArrayOutputStream();
              var audioInputStream = new AudioInputStream(
@@ -143,4 +284,9 @@ public class AudioProcessor {
             return wavOutputStream.toByteArray();
         }
     }
+
+    public enum ConverterType {
+        JAVA,
+        FFMPEG
+    }
 }
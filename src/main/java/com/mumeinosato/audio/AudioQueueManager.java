@@ -0,0 +1,230 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.metrics.UtteranceTrace;
+import jakarta.annotation.PostConstruct;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 音声処理の段の間のキュー。どの段も容量が決まっていて、Gemini や TTS が遅れても溜まり続けることはない。
+ * 一杯になったときの扱いは段ごとに {@link BoundedAudioQueue.Policy} で決め、段ごとの処理待ちの数と捨てた数を数える。
+ */
+@Component
+public class AudioQueueManager {
+    private static final Logger logger = LogManager.getLogger(AudioQueueManager.class);
+
+    public enum Stage {
+        // 話し終わって変換を待っている発話（ギルドごと）
+        UTTERANCE,
+        // Gemini への送信を待っている発話（全ギルドで 1 本）
+        GEMINI,
+        // 再生を待っている返答音声（ギルドごと）
+        REPLY
+    }
+
+    @Value("${queue.utterance.capacity:8}")
+    private int utteranceCapacity;
+
+    // 既定では溢れたときだけ捨てる。COALESCE_PER_USER にすると、同じユーザーの前の発話は処理前でも捨てる
+    @Value("${queue.utterance.policy:DROP_OLDEST}")
+    private BoundedAudioQueue.Policy utterancePolicy;
+
+    @Value("${queue.gemini.capacity:32}")
+    private int geminiCapacity;
+
+    @Value("${queue.gemini.policy:DROP_OLDEST}")
+    private BoundedAudioQueue.Policy geminiPolicy;
+
+    @Value("${queue.reply.capacity:16}")
+    private int replyCapacity;
+
+    @Value("${queue.reply.policy:DROP_OLDEST}")
+    private BoundedAudioQueue.Policy replyPolicy;
+
+    // Gemini へ送る 16kHz モノラル PCM。送信は非同期なので全ギルドで 1 本のキューを使う
+    private BoundedAudioQueue<GuildAudio> geminiQueue;
+    // 追加した数だけ増やし、送信スレッドはこれを待ってから取り出す（捨てられていれば取り出せないので待ち直す）
+    private final Semaphore geminiAvailable = new Semaphore(0);
+    // Discord で再生する返答音声（ギルドごと）。受信途中の TTS の応答もそのまま流せるようにストリームで持つ
+    private final Map<String, GuildQueue> discordQueues = new ConcurrentHashMap<>();
+    private final Map<String, BoundedAudioQueue<SharedAudioData.AudioData>> utteranceQueues = new ConcurrentHashMap<>();
+    // 退出したギルドのキューで捨てた数
+    private final Map<Stage, LongAdder> retiredDrops = new EnumMap<>(Stage.class);
+
+    public AudioQueueManager() {
+        for (final var stage : Stage.values())
+            this.retiredDrops.put(stage, new LongAdder());
+    }
+
+    // すべての段で同じ容量と扱いにする
+    public AudioQueueManager(final int capacity, final BoundedAudioQueue.Policy policy) {
+        this();
+        this.utteranceCapacity = this.geminiCapacity = this.replyCapacity = capacity;
+        this.utterancePolicy = this.geminiPolicy = this.replyPolicy = policy;
+        this.initialize();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        this.geminiQueue = new BoundedAudioQueue<>(this.geminiCapacity, this.geminiPolicy,
+                audio -> audio.getGuildId() + "/" + audio.getUserId(), audio -> {});
+    }
+
+    public void enqueueGemini(final String guildId, final String userId, final byte[] audioData, final UtteranceTrace trace) {
+        if (audioData == null || audioData.length == 0)
+            return;
+
+        if (this.geminiQueue.offer(new GuildAudio(guildId, userId, audioData, trace)))
+            this.geminiAvailable.release();
+        else
+            logger.warn("Gemini queue is full, dropped utterance from user {} in guild {}", userId, guildId);
+    }
+
+    public GuildAudio dequeueGemini() throws InterruptedException {
+        while (true) {
+            this.geminiAvailable.acquire();
+            final var audio = this.geminiQueue.poll();
+            if (audio != null)
+                return audio;
+        }
+    }
+
+    // まだ Gemini に送っていない guildId の発話を捨てる
+    public int discardGemini(final String guildId) {
+        return this.geminiQueue.discardIf(audio -> audio.getGuildId().equals(guildId));
+    }
+
+    /**
+     * guildId の話し終わった発話のキュー。{@link SharedAudioData} に渡す。
+     * 捨てた発話のバッファはプールに返す。
+     */
+    public BoundedAudioQueue<SharedAudioData.AudioData> newUtteranceQueue(final String guildId) {
+        final var queue = new BoundedAudioQueue<>(this.utteranceCapacity, this.utterancePolicy,
+                SharedAudioData.AudioData::getId, SharedAudioData.AudioData::release);
+        this.retire(Stage.UTTERANCE, this.utteranceQueues.put(guildId, queue));
+        return queue;
+    }
+
+    /**
+     * guildId の再生キューを作る。返答音声が追加されるたびに listener が呼ばれる。
+     */
+    public void registerGuild(final String guildId, final Runnable listener) {
+        final var previous = this.discordQueues.put(guildId, new GuildQueue(listener,
+                new BoundedAudioQueue<>(this.replyCapacity, this.replyPolicy, null, ReplyAudio::discard)));
+        if (previous != null)
+            this.retire(Stage.REPLY, previous.replies);
+    }
+
+    public void removeGuild(final String guildId) {
+        final var queue = this.discordQueues.remove(guildId);
+        if (queue != null)
+            this.retire(Stage.REPLY, queue.replies);
+        this.retire(Stage.UTTERANCE, this.utteranceQueues.remove(guildId));
+    }
+
+    // 再生を待っている guildId の返答を捨てる。再生キューはそのまま使える
+    public int discardDiscord(final String guildId) {
+        final var queue = this.discordQueues.get(guildId);
+        return queue != null ? queue.replies.clear() : 0;
+    }
+
+    public void enqueueDiscord(final String guildId, final byte[] audioData) {
+        if (audioData != null && audioData.length > 0)
+            this.enqueueDiscord(guildId, ReplyAudio.of(ByteBuffer.wrap(audioData)));
+    }
+
+    public void enqueueDiscord(final String guildId, final InputStream audioStream) {
+        if (audioStream != null)
+            this.enqueueDiscord(guildId, ReplyAudio.of(audioStream));
+    }
+
+    // 退出済みのギルドへの返答は捨てる
+    public void enqueueDiscord(final String guildId, final ReplyAudio replyAudio) {
+        final var queue = this.discordQueues.get(guildId);
+        if (replyAudio == null)
+            return;
+        if (queue == null) {
+            replyAudio.discard();
+            return;
+        }
+
+        if (queue.replies.offer(replyAudio))
+            queue.listener.run();
+        else
+            logger.warn("Reply queue is full for guild {}, dropped reply", guildId);
+    }
+
+    public ReplyAudio pollDiscord(final String guildId) {
+        final var queue = this.discordQueues.get(guildId);
+        return queue != null ? queue.replies.poll() : null;
+    }
+
+    // 段ごとの処理待ちの数（ギルドごとの段は全ギルドの合計）
+    public int getDepth(final Stage stage) {
+        return switch (stage) {
+            case UTTERANCE -> this.utteranceQueues.values().stream().mapToInt(BoundedAudioQueue::size).sum();
+            case GEMINI -> this.geminiQueue.size();
+            case REPLY -> this.discordQueues.values().stream().mapToInt(queue -> queue.replies.size()).sum();
+        };
+    }
+
+    // 段ごとに、一杯になって（または同じユーザーの新しい発話に置き換えられて）捨てた数
+    public long getDropped(final Stage stage) {
+        final var retired = this.retiredDrops.get(stage).sum();
+        return retired + switch (stage) {
+            case UTTERANCE -> sumDropped(this.utteranceQueues.values());
+            case GEMINI -> this.geminiQueue.getDropped();
+            case REPLY -> sumDropped(this.discordQueues.values().stream().map(queue -> queue.replies).toList());
+        };
+    }
+
+    private static long sumDropped(final Collection<? extends BoundedAudioQueue<?>> queues) {
+        return queues.stream().mapToLong(BoundedAudioQueue::getDropped).sum();
+    }
+
+    // 使わなくなったキューの中身を捨て、捨てた数は段の合計に残す
+    private void retire(final Stage stage, final BoundedAudioQueue<?> queue) {
+        if (queue == null)
+            return;
+
+        queue.clear();
+        this.retiredDrops.get(stage).add(queue.getDropped());
+    }
+
+    private static class GuildQueue {
+        private final Runnable listener;
+        private final BoundedAudioQueue<ReplyAudio> replies;
+
+        private GuildQueue(final Runnable listener, final BoundedAudioQueue<ReplyAudio> replies) {
+            this.listener = listener;
+            this.replies = replies;
+        }
+    }
+
+    @Getter
+    public static class GuildAudio {
+        private final String guildId;
+        private final String userId;
+        private final byte[] data;
+        private final UtteranceTrace trace;
+
+        public GuildAudio(final String guildId, final String userId, final byte[] data, final UtteranceTrace trace) {
+            this.guildId = guildId;
+            this.userId = userId;
+            this.data = data;
+            this.trace = trace;
+        }
+    }
+}
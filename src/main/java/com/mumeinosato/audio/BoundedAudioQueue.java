@@ -0,0 +1,227 @@
+package com.mumeinosato.audio;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 容量の決まったロックなしのキュー。スロットごとに通し番号を持つリングバッファ（Vyukov 方式）で、
+ * 複数のスレッドから追加でき、一杯になったときは {@link Policy} に従って古い要素か新しい要素を捨てる。
+ *
+ * <p>捨てた要素は onDrop に渡すので、プールのバッファやストリームはそこで返す。
+ * 途中の要素はリングから抜けないので、取り消した要素は印を付けておき、取り出すときに読み飛ばす。
+ * 取り消した要素もリングから抜けるまでは場所を取るので、REJECT では先頭の要素が生きている限り一杯とみなす。
+ */
+public class BoundedAudioQueue<T> {
+    public enum Policy {
+        // 一杯なら最も古い要素を捨てる
+        DROP_OLDEST,
+        // 同じキー（ユーザー）の処理待ちがあれば、それを捨てて新しい方だけ残す。一杯なら最も古い要素を捨てる
+        COALESCE_PER_USER,
+        // 一杯なら新しい要素を捨てる
+        REJECT
+    }
+
+    private static final int LIVE = 0;
+    private static final int TAKEN = 1;
+    private static final int DEAD = 2;
+
+    private final int capacity;
+    private final Policy policy;
+    private final Function<T, String> keyOf;
+    private final Consumer<T> onDrop;
+    private final AtomicReferenceArray<Node<T>> slots;
+    // スロットの通し番号。追加できるのは番号が位置と一致するとき、取り出せるのは位置 + 1 のとき
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    // COALESCE_PER_USER でキーごとの最新の要素
+    private final Map<String, Node<T>> latest = new ConcurrentHashMap<>();
+
+    private static class Node<T> {
+        private final T value;
+        private final String key;
+        private final AtomicInteger state = new AtomicInteger(LIVE);
+
+        private Node(final T value, final String key) {
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    /**
+     * keyOf が null の場合、COALESCE_PER_USER は DROP_OLDEST と同じになる。
+     */
+    public BoundedAudioQueue(final int capacity, final Policy policy, final Function<T, String> keyOf, final Consumer<T> onDrop) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+        this.capacity = capacity;
+        this.policy = policy;
+        this.keyOf = policy == Policy.COALESCE_PER_USER ? keyOf : null;
+        this.onDrop = onDrop;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            this.sequences.set(i, i);
+    }
+
+    /**
+     * 追加する。REJECT で一杯だった場合は value を onDrop に渡して false を返す。
+     */
+    public boolean offer(final T value) {
+        final var node = new Node<>(value, this.keyOf != null ? this.keyOf.apply(value) : null);
+        while (!this.enqueue(node)) {
+            // 先頭が取り消し済みの要素なら、空きを作るだけで何も捨てていない
+            if (this.dequeue(true) != null)
+                continue;
+
+            if (this.policy == Policy.REJECT) {
+                this.dropped.increment();
+                this.onDrop.accept(value);
+                return false;
+            }
+
+            final var oldest = this.dequeue(false);
+            if (oldest != null && this.kill(oldest))
+                this.dropped.increment();
+        }
+        this.depth.incrementAndGet();
+
+        if (node.key != null) {
+            final var previous = this.latest.put(node.key, node);
+            if (previous != null && this.kill(previous))
+                this.dropped.increment();
+        }
+        return true;
+    }
+
+    public T poll() {
+        Node<T> node;
+        while ((node = this.dequeue(false)) != null) {
+            if (!node.state.compareAndSet(LIVE, TAKEN))
+                continue;
+
+            this.depth.decrementAndGet();
+            if (node.key != null)
+                this.latest.remove(node.key, node);
+            return node.value;
+        }
+        return null;
+    }
+
+    /**
+     * 条件に合う処理待ちの要素をすべて取り消して onDrop に渡す。溢れた分としては数えない。
+     */
+    public int discardIf(final Predicate<T> filter) {
+        var discarded = 0;
+        final var end = this.tail.get();
+        for (long position = this.head.get(); position < end; position++) {
+            final var node = this.slots.get(this.index(position));
+            if (node != null && filter.test(node.value) && this.kill(node))
+                discarded++;
+        }
+        return discarded;
+    }
+
+    public int clear() {
+        var discarded = 0;
+        T value;
+        while ((value = this.poll()) != null) {
+            this.onDrop.accept(value);
+            discarded++;
+        }
+        return discarded;
+    }
+
+    // 処理待ちの要素数（取り消した要素は含まない）
+    public int size() {
+        return this.depth.get();
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    // 一杯になって、または同じユーザーの新しい要素に置き換えられて捨てた数
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    private boolean kill(final Node<T> node) {
+        if (!node.state.compareAndSet(LIVE, DEAD))
+            return false;
+
+        this.depth.decrementAndGet();
+        if (node.key != null)
+            this.latest.remove(node.key, node);
+        this.onDrop.accept(node.value);
+        return true;
+    }
+
+    private boolean enqueue(final Node<T> node) {
+        var position = this.tail.get();
+        while (true) {
+            final var index = this.index(position);
+            final var difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.slots.set(index, node);
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+                position = this.tail.get();
+            } else if (difference < 0) {
+                // 1 周前の要素がまだ取り出されていない
+                return false;
+            } else {
+                position = this.tail.get();
+            }
+        }
+    }
+
+    // onlyDead の場合は、先頭が取り消し済みの要素のときだけ取り出す（状態は DEAD から戻らないので、確認してから取り出してよい）
+    private Node<T> dequeue(final boolean onlyDead) {
+        var position = this.head.get();
+        while (true) {
+            final var index = this.index(position);
+            final var difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (onlyDead) {
+                    // 読む前に他の取り出し側が先に取り出していれば、スロットは空か次の周の要素になっている
+                    final var node = this.slots.get(index);
+                    if (node == null || this.sequences.get(index) != position + 1) {
+                        position = this.head.get();
+                        continue;
+                    }
+                    if (node.state.get() != DEAD)
+                        return null;
+                }
+                if (this.head.compareAndSet(position, position + 1)) {
+                    final var node = this.slots.get(index);
+                    this.slots.set(index, null);
+                    this.sequences.set(index, position + this.capacity);
+                    return node;
+                }
+                position = this.head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = this.head.get();
+            }
+        }
+    }
+
+    private int index(final long position) {
+        return (int) (position % this.capacity);
+    }
+}
@@ -9,23 +9,24 @@ import com.sedmelluq.discord.lavaplayer.track.DelegatedAudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.InternalAudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
 
-import java.util.Base64;
+import java.nio.ByteBuffer;
 
 public class CustomInputStreamAudioTrack extends DelegatedAudioTrack {
-    private final byte[] bytes;
+    // 登録された音声の読み取り専用ビュー。再生のたびに別のストリームで読み出す
+    private final ByteBuffer buffer;
     private final MediaContainerDescriptor containerTrackFactory;
     private final CustomInputStreamSourceManager sourceManager;
 
-    public CustomInputStreamAudioTrack(final AudioTrackInfo trackInfo, final MediaContainerDescriptor containerTrackFactory, final CustomInputStreamSourceManager sourceManager){
+    public CustomInputStreamAudioTrack(final AudioTrackInfo trackInfo, final MediaContainerDescriptor containerTrackFactory, final CustomInputStreamSourceManager sourceManager, final ByteBuffer buffer){
         super(trackInfo);
-        this.bytes = Base64.getDecoder().decode(trackInfo.identifier);
+        this.buffer = buffer;
         this.containerTrackFactory = containerTrackFactory;
         this.sourceManager = sourceManager;
     }
 
     @Override
     public void process(final LocalAudioTrackExecutor localExecutor) throws Exception {
-        try(var inputStream = new CustomSeekableInputStream(this.bytes)) {
+        try(var inputStream = new CustomSeekableInputStream(this.buffer)) {
             final var internalTrack = (InternalAudioTrack)this.containerTrackFactory.createTrack(this.trackInfo, inputStream);
             this.processDelegate(internalTrack, localExecutor);
         } catch (final FriendlyException e){
@@ -39,7 +40,7 @@ public class CustomInputStreamAudioTrack extends DelegatedAudioTrack {
 
     @Override
     protected AudioTrack makeShallowClone(){
-        return new CustomInputStreamAudioTrack(this.trackInfo,this.containerTrackFactory, this.sourceManager);
+        return new CustomInputStreamAudioTrack(this.trackInfo,this.containerTrackFactory, this.sourceManager, this.buffer);
     }
 
     @Override
@@ -14,9 +14,23 @@ import org.apache.logging.log4j.Logger;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * メモリ上の WAV を再生するソース。
+ * 音声は {@link #register(ByteBuffer)} で一度だけ登録し、返された短いキーを loadItem に渡す。
+ * 音声そのものを識別子に埋め込まないので、Base64 への変換やコピーは発生しない。
+ */
 public class CustomInputStreamSourceManager extends ProbingAudioSourceManager {
     private static final Logger logger = org.apache.logging.log4j.LogManager.getLogger(CustomInputStreamSourceManager.class);
+    private static final String KEY_PREFIX = "memory:";
+
+    // 読み込まれるまでの間だけ保持する。読み込んだ時点でトラックに引き継いで取り除く
+    private final Map<String, ByteBuffer> entries = new ConcurrentHashMap<>();
+    private final AtomicLong nextKey = new AtomicLong();
 
     public CustomInputStreamSourceManager() {
         super(MediaContainerRegistry.DEFAULT_REGISTRY);
@@ -27,29 +41,55 @@ public class CustomInputStreamSourceManager extends ProbingAudioSourceManager {
         return "CustomInputStream";
     }
 
+    public String register(final byte[] bytes) {
+        return this.register(ByteBuffer.wrap(bytes));
+    }
+
+    // バッファはコピーせずに読み取り専用のビューとして保持する。登録後は内容を書き換えないこと
+    public String register(final ByteBuffer buffer) {
+        final var key = KEY_PREFIX + this.nextKey.incrementAndGet();
+        this.entries.put(key, buffer.asReadOnlyBuffer());
+        return key;
+    }
+
+    // 読み込みに失敗した場合などに、登録したままの音声を捨てる
+    public void unregister(final String key) {
+        this.entries.remove(key);
+    }
+
     @Override
     public AudioItem loadItem(final AudioPlayerManager manager, final AudioReference reference){
+        final var identifier = reference.getIdentifier();
+        if (identifier == null || !identifier.startsWith(KEY_PREFIX))
+            return null;
+
+        final var buffer = this.entries.remove(identifier);
+        if (buffer == null) {
+            logger.warn("No audio registered for key: {}", identifier);
+            return null;
+        }
+
         try {
             final var title = reference.getTitle();
             final var author = reference.getAuthor();
             final var length = 0L;
-            final var identifier = reference.getIdentifier();
             final var isStream = false;
             final var uri = reference.getUri();
 
             final var trackInfo = new AudioTrackInfo(title, author, length, identifier, isStream, uri);
             final var containerDescriptor = new MediaContainerDescriptor(new WavContainerProbe(), null);
 
-            return this.createTrack(trackInfo, containerDescriptor);
+            return new CustomInputStreamAudioTrack(trackInfo, containerDescriptor, this, buffer);
         } catch (final Exception e){
             logger.error("Error loading item: {}", e.getMessage(), e);
             return null;
         }
     }
 
+    // 音声はメモリ上にしかないので、トラックをシリアライズしても復元できない
     @Override
     public boolean isTrackEncodable(final AudioTrack track) {
-        return true;
+        return false;
     }
 
     @Override
@@ -68,10 +108,16 @@ public class CustomInputStreamSourceManager extends ProbingAudioSourceManager {
     }
 
     @Override
-    public void shutdown() {}
+    public void shutdown() {
+        this.entries.clear();
+    }
 
     @Override
     protected AudioTrack createTrack(final AudioTrackInfo trackInfo, final MediaContainerDescriptor containerTrackFactory){
-        return new CustomInputStreamAudioTrack(trackInfo, containerTrackFactory, this);
+        final var buffer = this.entries.remove(trackInfo.identifier);
+        if (buffer == null)
+            return null;
+
+        return new CustomInputStreamAudioTrack(trackInfo, containerTrackFactory, this, buffer);
     }
 }
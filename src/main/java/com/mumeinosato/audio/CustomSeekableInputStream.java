@@ -1,60 +1,59 @@
 package com.mumeinosato.audio;
 
-import com.sedmelluq.discord.lavaplayer.tools.io.ExtendedBufferedInputStream;
 import com.sedmelluq.discord.lavaplayer.tools.io.SeekableInputStream;
 import com.sedmelluq.discord.lavaplayer.track.info.AudioTrackInfoProvider;
-import org.apache.logging.log4j.Logger;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * メモリ上の音声をコピーせずに読み出すストリーム。
+ * 渡されたバッファの位置は変更しないので、同じバッファから何本でも作れる。
+ */
 public class CustomSeekableInputStream extends SeekableInputStream {
-    private static final Logger logger = org.apache.logging.log4j.LogManager.getLogger(CustomSeekableInputStream.class);
-
-    private final ByteArrayInputStream inputStream;
-    private final ExtendedBufferedInputStream bufferedStream;
-    private long position;
+    private final ByteBuffer buffer;
 
     public CustomSeekableInputStream(final byte[] bytes){
-        super(bytes.length,0);
-        this.inputStream = new ByteArrayInputStream(bytes);
-        this.bufferedStream = new ExtendedBufferedInputStream(this.inputStream);
+        this(ByteBuffer.wrap(bytes));
     }
 
-    @Override
-    public int read() throws IOException {
-        final var result = this.bufferedStream.read();
+    public CustomSeekableInputStream(final ByteBuffer buffer){
+        super(buffer.remaining(), 0);
+        // 読み出し位置は自分だけのものにする
+        this.buffer = buffer.slice();
+    }
 
-        if(result >= 0)
-            this.position++;
+    @Override
+    public int read() {
+        if(!this.buffer.hasRemaining())
+            return -1;
 
-        return result;
+        return this.buffer.get() & 0xff;
     }
 
     @Override
-    public int read(final  byte[] b, final  int off, final int len) throws IOException{
-        final var read = this.bufferedStream.read(b, off, len);
-        this.position += read;
+    public int read(final  byte[] b, final  int off, final int len){
+        if(len == 0)
+            return 0;
+        if(!this.buffer.hasRemaining())
+            return -1;
+
+        final var read = Math.min(len, this.buffer.remaining());
+        this.buffer.get(b, off, read);
         return read;
     }
 
     @Override
-    public long skip(final long n) throws IOException {
-        final var skipped = this.bufferedStream.skip(n);
-        this.position += skipped;
+    public long skip(final long n) {
+        final var skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+        this.buffer.position(this.buffer.position() + skipped);
         return skipped;
     }
 
     @Override
-    public int available() throws IOException{
-        return this.bufferedStream.available();
-    }
-
-    @Override
-    public synchronized void reset() throws IOException {
-        throw new IOException("mark/reset not supported");
+    public int available(){
+        return this.buffer.remaining();
     }
 
     @Override
@@ -63,26 +62,22 @@ public class CustomSeekableInputStream extends SeekableInputStream {
     }
 
     @Override
-    public void close() throws IOException{
-        try{
-            this.inputStream.close();
-        }catch (final IOException e) {
-            logger.error("Error closing stream: {}", e.getMessage(), e);
-        }
-    }
+    public void close() {}
 
     @Override
     public long getPosition(){
-        return this.position;
+        return this.buffer.position();
     }
 
     @Override
     public boolean canSeekHard(){
-        return false;
+        return true;
     }
 
     @Override
-    protected void seekHard(final long position) {}
+    protected void seekHard(final long position) {
+        this.buffer.position((int) Math.max(0, Math.min(position, this.buffer.limit())));
+    }
 
     @Override
     public List <AudioTrackInfoProvider> getTrackInfoProviders() {
@@ -1,23 +1,142 @@
 package com.mumeinosato.audio;
 
-import com.mumeinosato.config.DiscordSymbol;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
+/**
+ * 話し終わりの判定を、ポーリングではなくユーザーごとの期限で実行する共有スケジューラー。
+ * 期限が来たときに判定し直し、その間に音声が届いていれば新しい期限で予約し直す。
+ * ギルドが退出したら {@link #cancelGuild(String)} でそのギルドの予約をすべて取り消す。
+ */
+@Component
 public class DataCheckScheduler {
-    private final SharedAudioData sharedAudioData;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private static final Logger logger = LogManager.getLogger(DataCheckScheduler.class);
 
-    public DataCheckScheduler(final SharedAudioData sharedAudioData){
-        this.sharedAudioData = sharedAudioData;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, Deadlines> guilds = new ConcurrentHashMap<>();
+
+    public DataCheckScheduler() {
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "data-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public Deadlines register(final String guildId) {
+        final var deadlines = new Deadlines(guildId);
+        final var previous = this.guilds.put(guildId, deadlines);
+        if (previous != null)
+            previous.cancel();
+        return deadlines;
+    }
+
+    public void cancelGuild(final String guildId) {
+        final var deadlines = this.guilds.remove(guildId);
+        if (deadlines != null)
+            deadlines.cancel();
     }
 
-    public void start(){
-        this.scheduler.scheduleAtFixedRate(() -> this.sharedAudioData.checkAndMoveData(),
-                0,
-                DiscordSymbol.LOOP_MILLISECONDS,
-                TimeUnit.MICROSECONDS);
+    @PreDestroy
+    public void shutdown() {
+        this.guilds.values().forEach(Deadlines::cancel);
+        this.guilds.clear();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * 1 ギルド分の予約。キー（ユーザー ID）ごとに予約は常に 1 つだけ持つ。
+     *
+     * <p>判定はマップのロックの外で行う。判定中に watch で予約が置き換えられた場合は、判定の結果は使わずに新しい予約に任せる。
+     */
+    public class Deadlines {
+        private final String guildId;
+        private final Map<String, Check> checks = new ConcurrentHashMap<>();
+        private volatile boolean cancelled;
+
+        // 1 回分の予約。マップに入っているものだけが有効で、置き換えられたものは実行されても何もしない
+        private final class Check implements Runnable {
+            private final String key;
+            private final LongSupplier check;
+            private ScheduledFuture<?> future;
+            // 判定を始めた後は、期限が早くても新しい予約に置き換える（判定の後に続けるかどうかが分からないため）
+            private volatile boolean started;
+
+            private Check(final String key, final LongSupplier check) {
+                this.key = key;
+                this.check = check;
+            }
+
+            @Override
+            public void run() {
+                this.started = true;
+                Deadlines.this.run(this);
+            }
+        }
+
+        private Deadlines(final String guildId) {
+            this.guildId = guildId;
+        }
+
+        /**
+         * key の判定を delayMillis 後に予約する。すでにそれより早い予約がある場合はそちらに任せる。
+         * check は次に判定するまでのミリ秒を返し、負の値を返したら予約をやめる。
+         */
+        public void watch(final String key, final long delayMillis, final LongSupplier check) {
+            if (this.cancelled)
+                return;
+
+            this.checks.compute(key, (k, current) -> {
+                if (current != null && !current.started && current.future.getDelay(TimeUnit.MILLISECONDS) <= delayMillis)
+                    return current;
+                if (current != null)
+                    current.future.cancel(false);
+                return this.schedule(key, delayMillis, check);
+            });
+        }
+
+        private Check schedule(final String key, final long delayMillis, final LongSupplier check) {
+            final var scheduled = new Check(key, check);
+            scheduled.future = DataCheckScheduler.this.executor.schedule(scheduled, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            return scheduled;
+        }
+
+        private void run(final Check self) {
+            // 期限 0 の予約は watch が登録し終える前に始まることがあるので、get ではなく compute で登録を待ってから確かめる
+            if (this.cancelled || this.checks.compute(self.key, (k, current) -> current) != self)
+                return;
+
+            long next;
+            try {
+                next = self.check.getAsLong();
+            } catch (final Exception e) {
+                logger.error("Error checking data for guild {}: {}", this.guildId, e.getMessage(), e);
+                next = -1;
+            }
+
+            // 判定中に watch で置き換えられていなければ、結果に従って予約し直すかやめる
+            final var delay = next;
+            this.checks.computeIfPresent(self.key, (k, current) -> {
+                if (current != self)
+                    return current;
+                return delay < 0 || this.cancelled ? null : this.schedule(self.key, delay, self.check);
+            });
+        }
+
+        private void cancel() {
+            this.cancelled = true;
+            this.checks.values().forEach(check -> check.future.cancel(false));
+            this.checks.clear();
+        }
     }
 }
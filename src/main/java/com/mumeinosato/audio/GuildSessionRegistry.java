@@ -0,0 +1,140 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.gemini.SessionManager;
+import com.mumeinosato.metrics.PipelineMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VC に参加しているギルドごとの、Gemini セッションから音声の送受信までの一式を管理する。
+ * 状態はギルドごとに分かれていて、スレッドは {@link PipelineExecutors}、{@link DataCheckScheduler}、{@link AudioPlayerPool} を共有する。
+ */
+@Component
+public class GuildSessionRegistry {
+    private static final Logger logger = LogManager.getLogger(GuildSessionRegistry.class);
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private AudioProcessor audioProcessor;
+
+    @Autowired
+    private AudioQueueManager audioQueueManager;
+
+    @Autowired
+    private DataCheckScheduler dataCheckScheduler;
+
+    @Autowired
+    private OpusPacketStore opusPacketStore;
+
+    @Autowired
+    private PipelineExecutors pipelineExecutors;
+
+    @Autowired
+    private AudioPlayerPool audioPlayerPool;
+
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    // 作り終えたセッションだけを入れる
+    private final Map<String, GuildVoiceSession> sessions = new ConcurrentHashMap<>();
+    // 参加と退出はギルドごとに排他する。Gemini への接続を待っている間も、他のギルドの参加や退出は止めない
+    // （退出後も残しておかないと、同じギルドの参加と退出が別々のロックで排他されてしまう）
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    @Getter
+    public static class GuildVoiceSession {
+        private final String guildId;
+        private final SharedAudioData sharedAudioData;
+        private final AudioHandler handler;
+
+        private GuildVoiceSession(final String guildId, final SharedAudioData sharedAudioData, final AudioHandler handler) {
+            this.guildId = guildId;
+            this.sharedAudioData = sharedAudioData;
+            this.handler = handler;
+        }
+    }
+
+    public GuildSessionRegistry() {}
+
+    public GuildSessionRegistry(final SessionManager sessionManager, final AudioProcessor audioProcessor, final AudioQueueManager audioQueueManager,
+                                final DataCheckScheduler dataCheckScheduler, final OpusPacketStore opusPacketStore, final PipelineExecutors pipelineExecutors,
+                                final AudioPlayerPool audioPlayerPool, final PipelineMetrics pipelineMetrics) {
+        this.sessionManager = sessionManager;
+        this.audioProcessor = audioProcessor;
+        this.audioQueueManager = audioQueueManager;
+        this.dataCheckScheduler = dataCheckScheduler;
+        this.opusPacketStore = opusPacketStore;
+        this.pipelineExecutors = pipelineExecutors;
+        this.audioPlayerPool = audioPlayerPool;
+        this.pipelineMetrics = pipelineMetrics;
+    }
+
+    public boolean contains(final String guildId) {
+        return this.sessions.containsKey(guildId);
+    }
+
+    public int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * guildId の Gemini セッションと音声の処理一式を作る。Gemini に接続できなかった場合は null を返す。
+     * プールに接続済みのセッションがなければ、接続し終えるまで待つ（待つのは同じギルドの参加と退出だけ）。
+     */
+    public GuildVoiceSession open(final String guildId) {
+        synchronized (this.lock(guildId)) {
+            final var existing = this.sessions.get(guildId);
+            if (existing != null)
+                return existing;
+
+            if (!this.sessionManager.createSession(guildId)) {
+                logger.error("Failed to create Gemini session for guild: {}", guildId);
+                return null;
+            }
+
+            final var sharedAudioData = new SharedAudioData(this.audioProcessor.getCaptureFormat(), this.dataCheckScheduler.register(guildId),
+                    this.audioQueueManager.newUtteranceQueue(guildId));
+            final var handler = new AudioHandler(this.audioProcessor, sharedAudioData, this.audioPlayerPool, guildId,
+                    this.audioQueueManager, this.sessionManager, this.opusPacketStore, this.pipelineExecutors, this.pipelineMetrics);
+
+            final var session = new GuildVoiceSession(guildId, sharedAudioData, handler);
+            this.sessions.put(guildId, session);
+            logger.info("Voice session opened for guild: {} ({} active)", guildId, this.sessions.size());
+            return session;
+        }
+    }
+
+    // 入力側から順に止めるので、閉じている途中で新しい発話や返答が入ってくることはない
+    public void close(final String guildId) {
+        synchronized (this.lock(guildId)) {
+            final var session = this.sessions.remove(guildId);
+            if (session == null)
+                return;
+
+            this.dataCheckScheduler.cancelGuild(guildId);
+            session.getHandler().close();
+            this.sessionManager.removeSession(guildId);
+            this.audioProcessor.removeGuild(guildId);
+            logger.info("Voice session closed for guild: {} ({} active, {} players in use)",
+                    guildId, this.sessions.size(), this.audioPlayerPool.getActivePlayers());
+        }
+    }
+
+    private Object lock(final String guildId) {
+        return this.locks.computeIfAbsent(guildId, id -> new Object());
+    }
+
+    @PreDestroy
+    public void closeAll() {
+        this.sessions.keySet().forEach(this::close);
+    }
+}
@@ -0,0 +1,218 @@
+package com.mumeinosato.audio;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * エンコード済みの Opus パケット列を、元の音声のハッシュをキーにして保存する。
+ * 同じ音声をもう一度再生するときは、デコードもエンコードもせずにパケットをそのまま送れる。
+ *
+ * <p>パケットは追記専用のファイルに [長さ 2 バイト][パケット] の形で並べ、キーと位置はインデックスファイルに 1 行ずつ追記する。
+ * ファイルが上限に達したら両方を空にして最初から溜め直す。1 件で上限を超える返答は保存しない。
+ *
+ * <p>キーは WAV 全体のハッシュなので、再生前に引けるのはメモリ上にそろった返答（{@link ReplyAudio#getBuffer()} が null でないもの）だけ。
+ * TTS からストリームで届いた返答はエンコードしながら保存するが、その場では引かれず、
+ * 同じ音声が後で {@link com.mumeinosato.tts.TtsCache} からメモリ上の音声として返されたときに初めて使われる。
+ */
+@Component
+public class OpusPacketStore {
+    private static final Logger logger = LogManager.getLogger(OpusPacketStore.class);
+
+    @Value("${opus_cache.directory:audio/opus-cache}")
+    private Path directory;
+
+    @Value("${opus_cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private FileChannel packetFile;
+    private BufferedWriter indexWriter;
+
+    private record Entry(long offset, int length) {}
+
+    public OpusPacketStore() {}
+
+    public OpusPacketStore(final Path directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.initialize();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        try {
+            Files.createDirectories(this.directory);
+            this.packetFile = FileChannel.open(this.packetPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.loadIndex();
+            this.indexWriter = Files.newBufferedWriter(this.indexPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            logger.info("Opus packet store ready: {} replies ({} bytes)", this.index.size(), this.packetFile.size());
+        } catch (final IOException e) {
+            logger.error("Failed to open Opus packet store {}: {}", this.directory, e.getMessage(), e);
+            this.packetFile = null;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        try {
+            if (this.indexWriter != null)
+                this.indexWriter.close();
+            if (this.packetFile != null)
+                this.packetFile.close();
+        } catch (final IOException e) {
+            logger.error("Error closing Opus packet store: {}", e.getMessage(), e);
+        }
+        this.packetFile = null;
+    }
+
+    // 元の音声（WAV 全体）のハッシュ。読み取り位置は変更しない
+    public static String hash(final ByteBuffer audio) {
+        final var digest = sha256();
+        digest.update(audio.duplicate());
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean contains(final String key) {
+        return this.index.containsKey(key);
+    }
+
+    /**
+     * key のパケットを先頭から順に sink に渡す。保存されていない場合は false を返す。
+     * 渡すバッファはまとめて読み込んだ領域の一部なので、パケットごとのコピーはしない。
+     */
+    public synchronized boolean play(final String key, final Consumer<ByteBuffer> sink) {
+        final var entry = this.index.get(key);
+        if (entry == null || this.packetFile == null)
+            return false;
+
+        final var data = ByteBuffer.allocate(entry.length());
+        try {
+            while (data.hasRemaining()) {
+                if (this.packetFile.read(data, entry.offset() + data.position()) < 0)
+                    throw new IOException("Unexpected end of packet file");
+            }
+        } catch (final IOException e) {
+            logger.warn("Failed to read stored packets: {}", e.getMessage());
+            this.index.remove(key);
+            return false;
+        }
+
+        data.flip();
+        while (data.remaining() >= 2) {
+            final var length = data.getShort() & 0xffff;
+            final var packet = data.slice().limit(length);
+            data.position(data.position() + length);
+            sink.accept(packet.asReadOnlyBuffer());
+        }
+        return true;
+    }
+
+    public synchronized void put(final String key, final List<byte[]> packets) {
+        if (packets.isEmpty() || this.packetFile == null || this.index.containsKey(key))
+            return;
+
+        var length = 0L;
+        for (final var packet : packets) {
+            // 長さは 2 バイトで持つ（Opus のパケットは最大でも 1275 バイト）
+            if (packet.length > 0xffff)
+                return;
+            length += 2 + packet.length;
+        }
+        // 空にしても入らないので、今ある分を消さずに諦める
+        if (length > this.maxBytes) {
+            logger.debug("Opus packets for one reply exceed {} bytes, not storing", this.maxBytes);
+            return;
+        }
+
+        final var data = ByteBuffer.allocate((int) length);
+        for (final var packet : packets) {
+            data.putShort((short) packet.length);
+            data.put(packet);
+        }
+        data.flip();
+
+        try {
+            if (this.packetFile.size() + length > this.maxBytes)
+                this.reset();
+
+            final var offset = this.packetFile.size();
+            while (data.hasRemaining())
+                this.packetFile.write(data, offset + data.position());
+
+            // パケットを書き終えてからインデックスに追記するので、途中で落ちても壊れた位置は残らない
+            this.indexWriter.write(key + " " + offset + " " + length);
+            this.indexWriter.newLine();
+            this.indexWriter.flush();
+            this.index.put(key, new Entry(offset, (int) length));
+        } catch (final IOException e) {
+            logger.error("Failed to store Opus packets: {}", e.getMessage(), e);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        if (!Files.exists(this.indexPath()))
+            return;
+
+        final var size = this.packetFile.size();
+        for (final var line : Files.readAllLines(this.indexPath(), StandardCharsets.UTF_8)) {
+            final var fields = line.split(" ");
+            if (fields.length != 3)
+                continue;
+
+            try {
+                final var entry = new Entry(Long.parseLong(fields[1]), Integer.parseInt(fields[2]));
+                if (entry.offset() + entry.length() <= size)
+                    this.index.put(fields[0], entry);
+            } catch (final NumberFormatException e) {
+                logger.warn("Skipping broken Opus index line: {}", line);
+            }
+        }
+    }
+
+    private void reset() throws IOException {
+        logger.info("Opus packet store reached {} bytes, starting over", this.maxBytes);
+        this.index.clear();
+        this.packetFile.truncate(0);
+        this.indexWriter.close();
+        this.indexWriter = Files.newBufferedWriter(this.indexPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private Path packetPath() {
+        return this.directory.resolve("packets.bin");
+    }
+
+    private Path indexPath() {
+        return this.directory.resolve("packets.idx");
+    }
+}
@@ -0,0 +1,128 @@
+package com.mumeinosato.audio;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.format.transcoder.AudioChunkEncoder;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.function.Consumer;
+
+/**
+ * 返答の PCM を 48kHz ステレオに変換し、20ms ごとの Opus パケットにエンコードして sink に渡す。
+ * lavaplayer のトラック読み込み（WAV の判別・デコード・再エンコード）を通らないので、返答ごとの準備が軽い。
+ *
+ * <p>PCM はチャンク単位で渡してよく、フレームの端数は次のチャンクとつなげる。
+ * 最後に {@link #flush()} を呼ぶと、残りを無音で埋めて 1 パケットにする。
+ */
+public class OpusReplyEncoder implements AutoCloseable {
+    // 20ms 分の 1 チャンネルあたりのサンプル数（48kHz）
+    private static final int FRAME_SAMPLES = 960;
+    private static final int CHANNELS = 2;
+
+    private final AudioFormat sourceFormat;
+    private final PcmConverter converter;
+    private final AudioChunkEncoder encoder;
+    private final Consumer<byte[]> sink;
+    // ネイティブのエンコーダーに渡すため direct バッファにする
+    private final ShortBuffer frame;
+    private final byte[] carry;
+    private ShortBuffer converted = ShortBuffer.allocate(0);
+    private int carryLength;
+
+    public OpusReplyEncoder(final AudioFormat sourceFormat, final AudioConfiguration configuration, final Consumer<byte[]> sink) {
+        final var targetFormat = AudioSendHandler.INPUT_FORMAT;
+        this.sourceFormat = sourceFormat;
+        this.converter = sourceFormat.matches(targetFormat) ? null : new PcmConverter(sourceFormat, targetFormat);
+        this.encoder = StandardAudioDataFormats.DISCORD_OPUS.createEncoder(configuration);
+        this.sink = sink;
+        this.frame = ByteBuffer.allocateDirect(FRAME_SAMPLES * CHANNELS * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        this.carry = new byte[sourceFormat.getFrameSize()];
+    }
+
+    public void encode(final byte[] pcm) {
+        this.encode(pcm, 0, pcm.length);
+    }
+
+    public void encode(final byte[] pcm, final int offset, final int length) {
+        var position = offset;
+        final var end = offset + length;
+
+        // 前のチャンクの端数（サンプルの途中）を先に埋める
+        if (this.carryLength > 0) {
+            final var fill = Math.min(this.carry.length - this.carryLength, end - position);
+            System.arraycopy(pcm, position, this.carry, this.carryLength, fill);
+            this.carryLength += fill;
+            position += fill;
+            if (this.carryLength < this.carry.length)
+                return;
+
+            this.process(this.carry, 0, this.carry.length);
+            this.carryLength = 0;
+        }
+
+        final var whole = (end - position) - (end - position) % this.carry.length;
+        this.process(pcm, position, whole);
+        position += whole;
+
+        this.carryLength = end - position;
+        System.arraycopy(pcm, position, this.carry, 0, this.carryLength);
+    }
+
+    // 途中のフレームを無音で埋めて出力する。返答の最後に呼ぶ
+    public void flush() {
+        if (this.frame.position() == 0)
+            return;
+
+        while (this.frame.hasRemaining())
+            this.frame.put((short) 0);
+        this.emit();
+        this.carryLength = 0;
+    }
+
+    @Override
+    public void close() {
+        this.encoder.close();
+    }
+
+    private void process(final byte[] pcm, final int offset, final int length) {
+        if (length == 0)
+            return;
+
+        final var in = ByteBuffer.wrap(pcm, offset, length).order(PcmConverter.byteOrder(this.sourceFormat)).asShortBuffer();
+        if (this.converter == null) {
+            this.push(in);
+            return;
+        }
+
+        final var required = this.converter.maxOutputSamples(in.remaining());
+        if (this.converted.capacity() < required)
+            this.converted = ShortBuffer.allocate(required);
+
+        this.converted.clear();
+        this.converter.convert(in, this.converted);
+        this.converted.flip();
+        this.push(this.converted);
+    }
+
+    private void push(final ShortBuffer samples) {
+        while (samples.hasRemaining()) {
+            final var limit = samples.limit();
+            samples.limit(samples.position() + Math.min(this.frame.remaining(), samples.remaining()));
+            this.frame.put(samples);
+            samples.limit(limit);
+
+            if (!this.frame.hasRemaining())
+                this.emit();
+        }
+    }
+
+    private void emit() {
+        this.frame.flip();
+        this.sink.accept(this.encoder.encode(this.frame));
+        this.frame.clear();
+    }
+}
@@ -0,0 +1,137 @@
+package com.mumeinosato.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * 16bit PCM のチャンネル数・サンプルレート・エンディアンをメモリ上で変換する。
+ * 内部に {@link PcmResampler} の状態を持つため、1 本のストリームにつき 1 インスタンスを使うこと。
+ */
+public class PcmConverter {
+    // Gemini Live API が受け付ける入力形式（16kHz / 16bit / モノラル / リトルエンディアン）
+    public static final AudioFormat GEMINI_INPUT_FORMAT = new AudioFormat(16000f, 16, 1, true, false);
+    // Gemini Live API が音声で返答するときの形式（24kHz / 16bit / モノラル / リトルエンディアン）
+    public static final AudioFormat GEMINI_OUTPUT_FORMAT = new AudioFormat(24000f, 16, 1, true, false);
+
+    private final AudioFormat sourceFormat;
+    private final AudioFormat targetFormat;
+    private final int sourceChannels;
+    private final int targetChannels;
+    private final int workChannels;
+    private final PcmResampler[] resamplers;
+    private float[][] input = new float[2][0];
+    private float[][] output = new float[2][0];
+
+    public PcmConverter(final AudioFormat sourceFormat, final AudioFormat targetFormat) {
+        validate(sourceFormat);
+        validate(targetFormat);
+
+        this.sourceFormat = sourceFormat;
+        this.targetFormat = targetFormat;
+        this.sourceChannels = sourceFormat.getChannels();
+        this.targetChannels = targetFormat.getChannels();
+        this.workChannels = Math.min(this.sourceChannels, this.targetChannels);
+
+        final var sourceRate = Math.round(sourceFormat.getSampleRate());
+        final var targetRate = Math.round(targetFormat.getSampleRate());
+        if (sourceRate == targetRate) {
+            this.resamplers = null;
+        } else {
+            this.resamplers = new PcmResampler[this.workChannels];
+            for (int c = 0; c < this.workChannels; c++)
+                this.resamplers[c] = new PcmResampler(sourceRate, targetRate);
+        }
+    }
+
+    public AudioFormat getSourceFormat() {
+        return this.sourceFormat;
+    }
+
+    public AudioFormat getTargetFormat() {
+        return this.targetFormat;
+    }
+
+    // 入力サンプル数（全チャンネル合計）に対する出力サンプル数の上限
+    public int maxOutputSamples(final int inputSamples) {
+        final var frames = inputSamples / this.sourceChannels;
+        final var outputFrames = this.resamplers == null ? frames : this.resamplers[0].maxOutputLength(frames);
+        return outputFrames * this.targetChannels;
+    }
+
+    /**
+     * in の残りを変換して out に書き込む。バッファのバイトオーダーは呼び出し側で各フォーマットに合わせておくこと。
+     */
+    public void convert(final ShortBuffer in, final ShortBuffer out) {
+        final var frames = in.remaining() / this.sourceChannels;
+        ensureCapacity(frames);
+
+        // チャンネル分離とダウンミックス
+        for (int i = 0; i < frames; i++) {
+            if (this.workChannels == 1 && this.sourceChannels == 2) {
+                this.input[0][i] = (in.get() + in.get()) * 0.5f;
+            } else {
+                for (int c = 0; c < this.workChannels; c++)
+                    this.input[c][i] = in.get();
+            }
+        }
+
+        var outputFrames = frames;
+        if (this.resamplers != null) {
+            for (int c = 0; c < this.workChannels; c++)
+                outputFrames = this.resamplers[c].process(this.input[c], frames, this.output[c]);
+        }
+        final var samples = this.resamplers != null ? this.output : this.input;
+
+        for (int i = 0; i < outputFrames; i++) {
+            for (int c = 0; c < this.targetChannels; c++)
+                out.put(clip(samples[Math.min(c, this.workChannels - 1)][i]));
+        }
+    }
+
+    public byte[] convert(final byte[] data) {
+        return this.convert(data, 0, data.length);
+    }
+
+    public byte[] convert(final byte[] data, final int offset, final int length) {
+        final var in = ByteBuffer.wrap(data, offset, length).order(byteOrder(this.sourceFormat)).asShortBuffer();
+        final var result = ByteBuffer.allocate(this.maxOutputSamples(in.remaining()) * 2).order(byteOrder(this.targetFormat));
+        final var out = result.asShortBuffer();
+
+        this.convert(in, out);
+        return Arrays.copyOf(result.array(), out.position() * 2);
+    }
+
+    public static ByteOrder byteOrder(final AudioFormat format) {
+        return format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    private void ensureCapacity(final int frames) {
+        if (this.input[0].length < frames) {
+            this.input = new float[this.workChannels][frames];
+        }
+
+        final var outputFrames = this.resamplers == null ? 0 : this.resamplers[0].maxOutputLength(frames);
+        if (this.output[0].length < outputFrames) {
+            this.output = new float[this.workChannels][outputFrames];
+        }
+    }
+
+    private static short clip(final float sample) {
+        final var rounded = Math.round(sample);
+        if (rounded > Short.MAX_VALUE)
+            return Short.MAX_VALUE;
+        if (rounded < Short.MIN_VALUE)
+            return Short.MIN_VALUE;
+        return (short) rounded;
+    }
+
+    private static void validate(final AudioFormat format) {
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) || format.getSampleSizeInBits() != 16)
+            throw new IllegalArgumentException("Only 16bit signed PCM is supported: " + format);
+        if (format.getChannels() != 1 && format.getChannels() != 2)
+            throw new IllegalArgumentException("Only mono or stereo is supported: " + format);
+    }
+}
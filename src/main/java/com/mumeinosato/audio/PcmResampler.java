@@ -0,0 +1,132 @@
+package com.mumeinosato.audio;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * モノラル PCM 用のストリーミング・ポリフェーズ FIR リサンプラー。
+ * フィルタは ffmpeg (swresample) の既定値と同じくカットオフ 0.97 / Kaiser 窓で設計する。
+ * 1 位相あたりのタップ数も swresample と同じく 32 を基準に、ダウンサンプル時は比率の分だけ増やす（48kHz → 16kHz では 96 タップ）。
+ * フレームごとに呼び出してもフィルタ履歴を保持するため、連続したストリームとして変換できる。
+ */
+public class PcmResampler {
+    // アップサンプル時の 1 位相あたりのタップ数
+    private static final int FILTER_SIZE = 32;
+    private static final double CUTOFF = 0.97;
+    private static final double KAISER_BETA = 9.0;
+
+    // 同じ変換比のフィルタ係数はユーザー間で共有する
+    private static final Map<Long, float[][]> FILTER_CACHE = new ConcurrentHashMap<>();
+
+    private final int upFactor;
+    private final int downFactor;
+    private final int tapsPerPhase;
+    private final float[][] phaseFilters;
+    private final int historyLength;
+    private float[] work;
+    private long phase;
+
+    public PcmResampler(final int inputRate, final int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0)
+            throw new IllegalArgumentException("Sample rate must be positive: " + inputRate + " -> " + outputRate);
+
+        final var divisor = gcd(inputRate, outputRate);
+        this.upFactor = outputRate / divisor;
+        this.downFactor = inputRate / divisor;
+
+        // ダウンサンプル時はカットオフが下がる分だけフィルタを長くする
+        final var ratio = Math.min(1.0, (double) this.upFactor / this.downFactor);
+        this.tapsPerPhase = (int) Math.ceil(FILTER_SIZE / ratio);
+        this.phaseFilters = FILTER_CACHE.computeIfAbsent(((long) this.upFactor << 32) | this.downFactor,
+                k -> designFilter(this.upFactor, this.downFactor, this.tapsPerPhase));
+        this.historyLength = this.tapsPerPhase - 1;
+        this.work = new float[this.historyLength + 1024];
+    }
+
+    public int maxOutputLength(final int inputLength) {
+        return (int) (((long) inputLength * this.upFactor) / this.downFactor) + 1;
+    }
+
+    /**
+     * input の先頭 length サンプルを変換して output に書き込み、書き込んだサンプル数を返す。
+     * output には {@link #maxOutputLength(int)} 以上の空きが必要。
+     */
+    public int process(final float[] input, final int length, final float[] output) {
+        if (this.work.length < this.historyLength + length)
+            this.work = Arrays.copyOf(this.work, this.historyLength + length);
+
+        final var buffer = this.work;
+        System.arraycopy(input, 0, buffer, this.historyLength, length);
+
+        var produced = 0;
+        var position = this.phase;
+        while (true) {
+            final long inputIndex = position / this.upFactor;
+            if (inputIndex >= length)
+                break;
+
+            final var filter = this.phaseFilters[(int) (position - inputIndex * this.upFactor)];
+            final var base = (int) inputIndex + this.historyLength;
+            var acc = 0f;
+            for (int k = 0; k < this.tapsPerPhase; k++)
+                acc += filter[k] * buffer[base - k];
+
+            output[produced++] = acc;
+            position += this.downFactor;
+        }
+
+        this.phase = position - (long) length * this.upFactor;
+        System.arraycopy(buffer, length, buffer, 0, this.historyLength);
+        return produced;
+    }
+
+    public void reset() {
+        Arrays.fill(this.work, 0f);
+        this.phase = 0;
+    }
+
+    private static float[][] designFilter(final int up, final int down, final int tapsPerPhase) {
+        final var length = tapsPerPhase * up;
+        final var cutoff = CUTOFF / Math.max(up, down);
+        final var center = (length - 1) / 2.0;
+        final var besselBeta = bessel0(KAISER_BETA);
+
+        final var prototype = new double[length];
+        var sum = 0.0;
+        for (int n = 0; n < length; n++) {
+            final var x = n - center;
+            final var sinc = x == 0 ? 1.0 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+            final var r = 2.0 * n / (length - 1) - 1.0;
+            final var window = bessel0(KAISER_BETA * Math.sqrt(Math.max(0.0, 1.0 - r * r))) / besselBeta;
+            prototype[n] = cutoff * sinc * window;
+            sum += prototype[n];
+        }
+
+        // 各位相の DC ゲインが 1 になるよう正規化（ゼロ挿入分の up 倍を含む）
+        final var gain = up / sum;
+        final var phases = new float[up][tapsPerPhase];
+        for (int p = 0; p < up; p++) {
+            for (int k = 0; k < tapsPerPhase; k++)
+                phases[p][k] = (float) (prototype[p + k * up] * gain);
+        }
+        return phases;
+    }
+
+    private static double bessel0(final double x) {
+        var sum = 1.0;
+        var term = 1.0;
+        final var half = x / 2.0;
+        for (int k = 1; k < 50; k++) {
+            term *= (half / k) * (half / k);
+            sum += term;
+            if (term < sum * 1e-12)
+                break;
+        }
+        return sum;
+    }
+
+    private static int gcd(final int a, final int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -0,0 +1,66 @@
+package com.mumeinosato.audio;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * すべてのギルドで共有する、スレッド数の決まったプール。
+ * ギルドごとの処理は {@link SerialExecutor} のレーンとして載せるので、参加するギルドが増えてもスレッドは増えない。
+ */
+@Component
+public class PipelineExecutors {
+    // 話し終わった発話の変換と Gemini への送信
+    @Value("${pipeline.utterance-threads:2}")
+    private int utteranceThreads;
+
+    // 返答音声の受信とエンコード（TTS の応答を読みながらエンコードするので、受信待ちの間もスレッドを使う）
+    @Value("${pipeline.playback-threads:4}")
+    private int playbackThreads;
+
+    private ExecutorService utteranceExecutor;
+    private ExecutorService playbackExecutor;
+
+    public PipelineExecutors() {}
+
+    public PipelineExecutors(final int utteranceThreads, final int playbackThreads) {
+        this.utteranceThreads = utteranceThreads;
+        this.playbackThreads = playbackThreads;
+        this.initialize();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        this.utteranceExecutor = Executors.newFixedThreadPool(this.utteranceThreads, daemonThreads("utterance"));
+        this.playbackExecutor = Executors.newFixedThreadPool(this.playbackThreads, daemonThreads("playback"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.utteranceExecutor.shutdownNow();
+        this.playbackExecutor.shutdownNow();
+    }
+
+    public SerialExecutor newUtteranceLane() {
+        return new SerialExecutor(this.utteranceExecutor);
+    }
+
+    public SerialExecutor newPlaybackLane() {
+        return new SerialExecutor(this.playbackExecutor);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        final var count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.metrics.UtteranceTrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Discord で再生する返答音声。受信途中のストリームか、メモリ上にそろった音声のどちらかを持つ。
+ */
+public class ReplyAudio {
+    private final InputStream stream;
+    private final ByteBuffer buffer;
+    // 返答の元になった発話の記録（ない場合は null）
+    private final UtteranceTrace trace;
+
+    private ReplyAudio(final InputStream stream, final ByteBuffer buffer, final UtteranceTrace trace) {
+        this.stream = stream;
+        this.buffer = buffer;
+        this.trace = trace;
+    }
+
+    public static ReplyAudio of(final InputStream stream) {
+        return new ReplyAudio(stream, null, null);
+    }
+
+    public static ReplyAudio of(final ByteBuffer buffer) {
+        return new ReplyAudio(null, buffer.asReadOnlyBuffer(), null);
+    }
+
+    public ReplyAudio withTrace(final UtteranceTrace trace) {
+        return new ReplyAudio(this.stream, this.buffer, trace);
+    }
+
+    public UtteranceTrace getTrace() {
+        return this.trace;
+    }
+
+    // 先頭から読むストリーム。メモリ上の音声はコピーせずに読む
+    public InputStream openStream() {
+        return this.buffer != null ? new CustomSeekableInputStream(this.buffer) : this.stream;
+    }
+
+    // メモリ上にそろっている場合の音声全体。ストリームの場合は null
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    // 再生せずに捨てる。受信途中のストリームは閉じて接続を解放する
+    public void discard() {
+        if (this.stream == null)
+            return;
+
+        try {
+            this.stream.close();
+        } catch (final IOException e) {
+            // 捨てるだけなので閉じられなくても構わない
+        }
+    }
+}
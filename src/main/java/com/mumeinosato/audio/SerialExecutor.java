@@ -0,0 +1,74 @@
+package com.mumeinosato.audio;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 共有スレッドプールの上で、投入された順に 1 つずつ実行するレーン。
+ * ギルドごとに 1 本ずつ持てば、ギルド内の順序を守ったままスレッド数はギルド数に比例しない。
+ * 1 回の実行で 1 件だけ処理してプールに戻すので、処理の多いギルドがスレッドを占有し続けることはない。
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger logger = LogManager.getLogger(SerialExecutor.class);
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    public SerialExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (this.closed)
+            return;
+
+        this.tasks.add(task);
+        this.schedule();
+    }
+
+    // 未実行のタスクを捨て、以降の投入を受け付けない。実行中のタスクはそのまま終わらせる
+    public void close() {
+        this.closed = true;
+        this.tasks.clear();
+    }
+
+    public int pending() {
+        return this.tasks.size();
+    }
+
+    private void schedule() {
+        if (this.tasks.isEmpty() || !this.scheduled.compareAndSet(false, true))
+            return;
+
+        try {
+            this.executor.execute(this::runNext);
+        } catch (final RejectedExecutionException e) {
+            // プールが停止済み
+            this.scheduled.set(false);
+            this.tasks.clear();
+        }
+    }
+
+    private void runNext() {
+        try {
+            final var task = this.tasks.poll();
+            if (task != null && !this.closed)
+                task.run();
+        } catch (final Exception e) {
+            logger.error("Error running serial task: {}", e.getMessage(), e);
+        } finally {
+            this.scheduled.set(false);
+            // 実行中に追加されたタスクがあれば続けて予約する
+            this.schedule();
+        }
+    }
+}
@@ -1,87 +1,204 @@
 package com.mumeinosato.audio;
 
 import com.mumeinosato.config.DiscordSymbol;
+import com.mumeinosato.metrics.UtteranceTrace;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
+import net.dv8tion.jda.api.audio.AudioReceiveHandler;
 
-import java.util.List;
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 @Getter
 @Setter
 public class SharedAudioData {
-    private final Queue<AudioData> audioQueue = new ConcurrentLinkedQueue<>();
-    private final Map<String, List<byte[]>> accumulatedDataMap = new ConcurrentHashMap<>();
-    private final Map<String, Long> dataStartTimeMap = new ConcurrentHashMap<>();
-    private long lastAddTime = System.currentTimeMillis();
-
-    public void checkAndMoveData() {
-        final var currentTime = System.currentTimeMillis();
+    // 書き込み中で閉じられなかったときにやり直すまでの時間
+    private static final long RETRY_MILLISECONDS = 5;
+
+    // 話し終わった発話。{@link AudioQueueManager#newUtteranceQueue(String)} で作った容量付きのキュー
+    private final BoundedAudioQueue<AudioData> audioQueue;
+    private final Map<String, SpeakerBuffer> accumulatedDataMap = new ConcurrentHashMap<>();
+    private final AudioFormat captureFormat;
+    private final AudioBufferPool bufferPool;
+    private final DataCheckScheduler.Deadlines deadlines;
+    // 設定されている場合は変換済みのフレームを受信ごとに渡す（ストリーミング送信用）
+    private volatile BiConsumer<String, byte[]> streamListener;
+    // 話し終わった発話をキューに入れたときに呼ばれる
+    private volatile Runnable utteranceListener;
+    // ユーザーが話し始めたとき（発話と判定された最初のフレーム）に受信スレッドから呼ばれる
+    private volatile Consumer<String> speechStartListener;
+
+    // captureFormat が受信フォーマットと異なる場合は、フレーム受信ごとにそのフォーマットへ変換して溜める
+    public SharedAudioData(final AudioFormat captureFormat, final DataCheckScheduler.Deadlines deadlines, final BoundedAudioQueue<AudioData> audioQueue) {
+        this.captureFormat = captureFormat;
+        this.deadlines = deadlines;
+        this.audioQueue = audioQueue;
+        // TALK_MILLISECONDS で閉じるまでの判定の遅れを見込んで 1 秒分の余裕を持たせる
+        this.bufferPool = new AudioBufferPool(
+                SpeakerBuffer.bytesFor(captureFormat, DiscordSymbol.TALK_MILLISECONDS + 1000),
+                DiscordSymbol.POOLED_BUFFERS);
+    }
 
-        for(final Map.Entry<String, List<byte[]>> entry:this.accumulatedDataMap.entrySet()){
-            if(this.shouldMoveData(entry.getKey(), currentTime))
-                this.moveDataToQueue(entry);
+    /**
+     * id の話し終わりを判定し、次に判定するまでのミリ秒を返す。バッファがなくなった場合は -1 を返す。
+     * {@link DataCheckScheduler} から、そのユーザーの期限が来たときだけ呼ばれる。
+     */
+    private long checkSpeaker(final String id) {
+        var buffer = this.accumulatedDataMap.get(id);
+        while (buffer != null) {
+            final var currentTime = System.currentTimeMillis();
+            if (!this.shouldMoveData(buffer, currentTime) && !this.isAbandoned(buffer, currentTime))
+                return this.nextCheckDelay(buffer, currentTime);
+
+            // 書き込み中なら少し後でやり直す。閉じた後のフレームは新しいバッファに入る
+            if (!buffer.seal())
+                return RETRY_MILLISECONDS;
+            this.closeBuffer(id, buffer);
+
+            // 判定中に次の発話が始まっていれば、続けてそちらを見る
+            buffer = this.accumulatedDataMap.get(id);
         }
+        return -1;
     }
 
-    private boolean shouldMoveData(final String id,final long currentTime){
-        final long startTime = this.dataStartTimeMap.getOrDefault(id, this.lastAddTime);
-        final var data = this.accumulatedDataMap.get(id);
+    /**
+     * 閉じたバッファを発話としてキューに入れるか、発話がなければプールに返す。
+     * 閉じた時点でバッファは判定側のものになる。受信スレッドが閉じる直前にバッファを読み、
+     * 閉じた後に新しいバッファへ置き換えている場合もあるので、マップからは残っていれば外すだけにする。
+     */
+    void closeBuffer(final String id, final SpeakerBuffer buffer) {
+        this.accumulatedDataMap.remove(id, buffer);
+        if (buffer.hasSpeech())
+            this.moveDataToQueue(id, buffer);
+        else
+            this.bufferPool.release(buffer.array());
+    }
 
-        return !data.isEmpty() && ((currentTime - this.lastAddTime) > DiscordSymbol.DURING_CONVERSATION_MILLISECONDS || (currentTime - startTime) > DiscordSymbol.TALK_MILLISECONDS);
+    // 音声が届けば期限は延びるので、予約し直した時点の時刻から計算する
+    private long nextCheckDelay(final SpeakerBuffer buffer, final long currentTime) {
+        final long deadline = buffer.hasSpeech()
+                ? Math.min(buffer.getLastVoiceTime() + DiscordSymbol.VAD_HANGOVER_MILLISECONDS,
+                        buffer.getStartTime() + DiscordSymbol.TALK_MILLISECONDS)
+                : buffer.getLastFrameTime() + DiscordSymbol.VAD_HANGOVER_MILLISECONDS;
+        return Math.max(1, deadline - currentTime + 1);
     }
 
-    private void moveDataToQueue(final Map.Entry<String, List<byte[]>> entry){
-        final var combinedData = this.combineData(entry.getValue());
-        final var audioData = new AudioData(entry.getKey(), combinedData);
-        this.audioQueue.add(audioData);
+    // 話し終わりはユーザーごとに判定するので、他の人が話し続けていても待たされない
+    private boolean shouldMoveData(final SpeakerBuffer buffer, final long currentTime){
+        if (!buffer.hasSpeech())
+            return false;
 
-        // 処理済みデータをマップから削除して重複処理を防ぐ
-        this.accumulatedDataMap.remove(entry.getKey());
-        this.dataStartTimeMap.remove(entry.getKey());
-        this.lastAddTime = System.currentTimeMillis();
+        // 声が途切れてからハングオーバー分経過したら話し終わりとみなす（フレームが届かなくなった場合も含む）
+        return (currentTime - buffer.getLastVoiceTime()) > DiscordSymbol.VAD_HANGOVER_MILLISECONDS
+                || (currentTime - buffer.getStartTime()) > DiscordSymbol.TALK_MILLISECONDS
+                || buffer.isFull();
     }
 
-    public void addAudioData(final String id, final  byte[] data){
-        final var accumulatedData = this.accumulatedDataMap.computeIfAbsent(id, k -> {
-            this.dataStartTimeMap.put(id, System.currentTimeMillis());
-            return new CopyOnWriteArrayList<>();
-        });
-
-        accumulatedData.add(data);
-        this.lastAddTime = System.currentTimeMillis();
+    // 発話が始まらないまま途切れたバッファ（雑音のみ）は送らずに捨てる
+    private boolean isAbandoned(final SpeakerBuffer buffer, final long currentTime){
+        return !buffer.hasSpeech() && (currentTime - buffer.getLastFrameTime()) > DiscordSymbol.VAD_HANGOVER_MILLISECONDS;
     }
 
-    private byte[] combineData(final List<byte[]> accumulatedData){
-        final var size = accumulatedData.stream().mapToInt(array -> array.length).sum();
-        final var decodedData = new byte[size];
-        var index = 0;
+    private void moveDataToQueue(final String id, final SpeakerBuffer buffer){
+        // バッファはコピーせずに渡し、使い終わったらプールに返してもらう
+        // 返答が再生されるまでの遅延は、ここで作る AudioData の trace に記録していく
+        final var audioData = new AudioData(id, buffer.slice(), buffer.getFormat(),
+                () -> this.bufferPool.release(buffer.array()));
+        // 一杯の場合は方針に従って古い発話か新しい発話が捨てられ、バッファはプールに返される
+        if (!this.audioQueue.offer(audioData))
+            return;
+
+        final var listener = this.utteranceListener;
+        if (listener != null)
+            listener.run();
+    }
 
-        for(final byte[] bytes:accumulatedData){
-            System.arraycopy(bytes,0,decodedData,index,bytes.length);
-            index += bytes.length;
+    // JDA の受信スレッドから呼ばれる。ユーザーごとの書き込みはこのスレッドだけが行う
+    public void addAudioData(final String id, final  byte[] data){
+        var accumulatedData = this.accumulatedDataMap.get(id);
+        var hadSpeech = accumulatedData != null && accumulatedData.hasSpeech();
+        var appended = accumulatedData != null ? accumulatedData.append(data) : -1;
+
+        if (appended < 0) {
+            // 初めてのフレームか、直前の発話が閉じられた後のフレーム
+            accumulatedData = this.createBuffer();
+            this.accumulatedDataMap.put(id, accumulatedData);
+            hadSpeech = false;
+            appended = accumulatedData.append(data);
+            this.deadlines.watch(id, DiscordSymbol.VAD_HANGOVER_MILLISECONDS, () -> this.checkSpeaker(id));
         }
 
-        return decodedData;
+        final var speechStart = this.speechStartListener;
+        if (speechStart != null && !hadSpeech && accumulatedData.hasSpeech())
+            speechStart.accept(id);
+
+        // 容量を使い切ったら期限を待たずに閉じる
+        if (accumulatedData.isFull())
+            this.deadlines.watch(id, 0, () -> this.checkSpeaker(id));
+
+        final var listener = this.streamListener;
+        if (listener != null && appended > 0)
+            listener.accept(id, accumulatedData.copyLast(appended));
+    }
+
+    private SpeakerBuffer createBuffer(){
+        final var sourceFormat = AudioReceiveHandler.OUTPUT_FORMAT;
+        final var converter = this.captureFormat.matches(sourceFormat) ? null : new PcmConverter(sourceFormat, this.captureFormat);
+        return new SpeakerBuffer(sourceFormat, converter, this.bufferPool.acquire());
     }
 
     public AudioData takeAudioData(){
         return this.audioQueue.poll();
     }
 
+    /**
+     * 話し終わってまだ処理されていない発話をすべて捨てる。話し途中のバッファはそのまま残す。
+     */
+    public int discardQueuedAudio(){
+        return this.audioQueue.clear();
+    }
+
     @Getter
     @Setter
     public static class AudioData {
         private final String id;
-        private final byte[] data;
-
-        public AudioData(final String id, final byte[] data){
+        // 読み取り専用のビュー。release() の後は参照しないこと
+        private final ByteBuffer data;
+        private final AudioFormat format;
+        @Getter(AccessLevel.NONE)
+        private final Runnable releaser;
+        @Getter(AccessLevel.NONE)
+        private final AtomicBoolean released = new AtomicBoolean();
+        // 話し終わりを判定した時点から、各段の時刻を記録する
+        private final UtteranceTrace trace = new UtteranceTrace();
+
+        public AudioData(final String id, final ByteBuffer data, final AudioFormat format, final Runnable releaser){
             this.id = id;
             this.data = data;
+            this.format = format;
+            this.releaser = releaser;
+        }
+
+        public int size(){
+            return this.data.remaining();
+        }
+
+        // Blob など byte[] しか受け付けない送り先に渡すときだけコピーする
+        public byte[] toByteArray(){
+            final var bytes = new byte[this.data.remaining()];
+            this.data.duplicate().get(bytes);
+            return bytes;
+        }
+
+        public void release(){
+            if (this.releaser != null && this.released.compareAndSet(false, true))
+                this.releaser.run();
         }
     }
 }
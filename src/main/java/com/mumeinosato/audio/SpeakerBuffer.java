@@ -0,0 +1,181 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.config.DiscordSymbol;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1 ユーザー分の発話を受信しながら変換して溜めるバッファ。
+ * converter が null の場合は受信したフレームをそのまま連結する。
+ * 発話が始まるまでは直前の無音だけを残し、発話の後ろの無音は取り出すときに切り捨てる。
+ *
+ * <p>書き込み先は {@link AudioBufferPool} から借りた固定長の配列で、追加のたびに確保やコピーをし直すことはない。
+ * 話し終わったら配列をそのまま {@link #slice()} で渡し、使い終わった側がプールに返す。
+ *
+ * <p>書き込みは受信スレッド 1 本だけが行い、話し終わりの判定スレッドとはロックを使わずに state の CAS で受け渡す。
+ * 時刻は書き込み側だけが更新する volatile なので、判定側はいつでも読み取れる。
+ */
+public class SpeakerBuffer {
+    private static final long FRAME_MILLISECONDS = 20;
+
+    private static final int OPEN = 0;
+    private static final int WRITING = 1;
+    private static final int SEALED = 2;
+
+    private final AudioFormat sourceFormat;
+    private final PcmConverter converter;
+    private final AudioFormat format;
+    private final VoiceActivityDetector detector;
+    private final int preRollBytes;
+    private final byte[] data;
+    private final ShortBuffer writeView;
+    private final AtomicInteger state = new AtomicInteger(OPEN);
+    private volatile long startTime;
+    private volatile long lastFrameTime;
+    private volatile long lastVoiceTime;
+    private volatile boolean hasSpeech;
+    private volatile boolean full;
+    private int length;
+    private int speechEnd;
+
+    public SpeakerBuffer(final AudioFormat sourceFormat, final PcmConverter converter, final byte[] data) {
+        this.sourceFormat = sourceFormat;
+        this.converter = converter;
+        this.format = converter != null ? converter.getTargetFormat() : sourceFormat;
+        this.detector = new VoiceActivityDetector(DiscordSymbol.VAD_HANGOVER_MILLISECONDS, FRAME_MILLISECONDS);
+        this.preRollBytes = bytesFor(this.format, DiscordSymbol.VAD_PRE_ROLL_MILLISECONDS);
+        this.data = data;
+        this.writeView = ByteBuffer.wrap(data).order(PcmConverter.byteOrder(this.format)).asShortBuffer();
+        this.startTime = System.currentTimeMillis();
+        this.lastFrameTime = this.startTime;
+    }
+
+    /**
+     * 追加したバイト数を返す（発話が始まる前の無音やバッファが一杯の場合は 0）。すでに閉じられている場合は -1 を返す。
+     */
+    public int append(final byte[] frame) {
+        if (!this.state.compareAndSet(OPEN, WRITING))
+            return -1;
+
+        try {
+            return this.appendFrame(frame);
+        } finally {
+            this.state.set(OPEN);
+        }
+    }
+
+    /**
+     * これ以上書き込まれないように閉じる。書き込み中の場合は false を返すので、少し後でやり直すこと。
+     */
+    public boolean seal() {
+        return this.state.compareAndSet(OPEN, SEALED) || this.state.get() == SEALED;
+    }
+
+    private int appendFrame(final byte[] frame) {
+        final var now = System.currentTimeMillis();
+        final var in = ByteBuffer.wrap(frame).order(PcmConverter.byteOrder(this.sourceFormat)).asShortBuffer();
+        final var speaking = this.detector.process(in, this.sourceFormat.getChannels());
+        this.lastFrameTime = now;
+
+        // 発話前の無音は毎フレーム詰め直さず、ある程度溜まったらまとめて直近 preRoll 分だけ残す
+        if (!this.hasSpeech && this.length >= this.preRollBytes * 4)
+            this.keepLast(this.preRollBytes);
+
+        final var appended = this.converter == null ? this.appendRaw(frame) : this.appendConverted(in);
+
+        if (speaking) {
+            if (!this.hasSpeech) {
+                // 発話の直前 preRoll 分だけ残して始める
+                this.keepLast(this.preRollBytes + appended);
+                this.hasSpeech = true;
+                this.startTime = now;
+            }
+            if (this.detector.isLastFrameVoiced())
+                this.lastVoiceTime = now;
+            this.speechEnd = this.length;
+            return appended;
+        }
+
+        return 0;
+    }
+
+    public boolean hasSpeech() {
+        return this.hasSpeech;
+    }
+
+    // 容量（TALK_MILLISECONDS 分）を使い切った。すぐに閉じる必要がある
+    public boolean isFull() {
+        return this.full;
+    }
+
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    public long getLastFrameTime() {
+        return this.lastFrameTime;
+    }
+
+    public long getLastVoiceTime() {
+        return this.lastVoiceTime;
+    }
+
+    // 書き込み側のスレッドから、直前に追加した分を取り出す
+    public byte[] copyLast(final int count) {
+        return Arrays.copyOfRange(this.data, this.length - count, this.length);
+    }
+
+    // 発話の最後（ハングオーバー込み）までをコピーせずに返す。seal() の後に呼ぶこと
+    public ByteBuffer slice() {
+        return ByteBuffer.wrap(this.data, 0, this.speechEnd).asReadOnlyBuffer();
+    }
+
+    // プールに返すための元の配列
+    public byte[] array() {
+        return this.data;
+    }
+
+    public AudioFormat getFormat() {
+        return this.format;
+    }
+
+    private int appendRaw(final byte[] frame) {
+        if (this.length + frame.length > this.data.length) {
+            this.full = true;
+            return 0;
+        }
+
+        System.arraycopy(frame, 0, this.data, this.length, frame.length);
+        this.length += frame.length;
+        return frame.length;
+    }
+
+    private int appendConverted(final ShortBuffer in) {
+        if (this.length + this.converter.maxOutputSamples(in.remaining()) * 2 > this.data.length) {
+            this.full = true;
+            return 0;
+        }
+
+        this.writeView.limit(this.data.length / 2).position(this.length / 2);
+        this.converter.convert(in, this.writeView);
+        final var written = this.writeView.position() * 2 - this.length;
+        this.length += written;
+        return written;
+    }
+
+    private void keepLast(final int keep) {
+        if (this.length <= keep)
+            return;
+
+        System.arraycopy(this.data, this.length - keep, this.data, 0, keep);
+        this.length = keep;
+    }
+
+    public static int bytesFor(final AudioFormat format, final long milliseconds) {
+        return (int) (format.getFrameRate() * milliseconds / 1000) * format.getFrameSize();
+    }
+}
@@ -0,0 +1,88 @@
+package com.mumeinosato.audio;
+
+import java.nio.ShortBuffer;
+
+/**
+ * 20ms フレームのエネルギーとゼロ交差率から発話区間を判定する。
+ * 雑音レベルは無音フレームから追従し、発話の終わりはハングオーバーで平滑化する。
+ */
+public class VoiceActivityDetector {
+    // これより小さいフレームは雑音レベルに関係なく無音とみなす
+    private static final double MIN_SPEECH_DB = -50.0;
+    // 雑音レベルからこれだけ大きければ発話候補
+    private static final double NOISE_MARGIN_DB = 9.0;
+    // ゼロ交差率がこれより高いフレームは雑音とみなす（十分に大きい場合を除く）
+    private static final double MAX_NOISE_ZCR = 0.3;
+    private static final double NOISE_ADAPT_RATE = 0.05;
+    private static final double MAX_NOISE_FLOOR_DB = -20.0;
+    // 単発のクリック音を拾わないよう、連続したフレーム数で発話開始とする
+    private static final int ONSET_FRAMES = 2;
+
+    private final int hangoverFrames;
+    private double noiseFloorDb = -60.0;
+    private int voicedFrames;
+    private int hangover;
+    private boolean speaking;
+    private boolean lastFrameVoiced;
+
+    public VoiceActivityDetector(final long hangoverMillis, final long frameMillis) {
+        this.hangoverFrames = (int) Math.max(1, hangoverMillis / frameMillis);
+    }
+
+    /**
+     * 1 フレーム分の 16bit PCM（インターリーブ）を判定し、ハングオーバーを含めて発話中かどうかを返す。
+     */
+    public boolean process(final ShortBuffer samples, final int channels) {
+        final var start = samples.position();
+        final var frames = samples.remaining() / channels;
+        if (frames == 0)
+            return this.speaking;
+
+        var energy = 0.0;
+        var crossings = 0;
+        var previous = 0.0;
+        for (int i = 0; i < frames; i++) {
+            var sample = 0.0;
+            for (int c = 0; c < channels; c++)
+                sample += samples.get(start + i * channels + c);
+            sample /= channels;
+
+            energy += sample * sample;
+            if (i > 0 && (sample >= 0) != (previous >= 0))
+                crossings++;
+            previous = sample;
+        }
+
+        final var energyDb = 10.0 * Math.log10(energy / frames / (32768.0 * 32768.0) + 1e-10);
+        final var zcr = (double) crossings / frames;
+        final var threshold = Math.max(MIN_SPEECH_DB, this.noiseFloorDb + NOISE_MARGIN_DB);
+        this.lastFrameVoiced = energyDb > threshold && (zcr < MAX_NOISE_ZCR || energyDb > threshold + NOISE_MARGIN_DB);
+
+        if (this.lastFrameVoiced) {
+            this.voicedFrames++;
+            if (this.voicedFrames >= ONSET_FRAMES) {
+                this.speaking = true;
+                this.hangover = this.hangoverFrames;
+            }
+        } else {
+            this.voicedFrames = 0;
+            // 無音フレームで雑音レベルを更新（下がるときは即座に追従）
+            this.noiseFloorDb = energyDb < this.noiseFloorDb
+                    ? energyDb
+                    : Math.min(MAX_NOISE_FLOOR_DB, this.noiseFloorDb + NOISE_ADAPT_RATE * (energyDb - this.noiseFloorDb));
+            if (this.speaking && --this.hangover <= 0)
+                this.speaking = false;
+        }
+
+        return this.speaking;
+    }
+
+    public boolean isSpeaking() {
+        return this.speaking;
+    }
+
+    // ハングオーバーを含まない、直前のフレーム単体の判定結果
+    public boolean isLastFrameVoiced() {
+        return this.lastFrameVoiced;
+    }
+}
@@ -1,10 +1,6 @@
 package com.mumeinosato.commands;
 
-import com.mumeinosato.audio.*;
-import com.mumeinosato.gemini.SessionManager;
-import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
-import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
-import com.sedmelluq.discord.lavaplayer.source.AudioSourceManagers;
+import com.mumeinosato.audio.GuildSessionRegistry;
 import jakarta.annotation.PreDestroy;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Guild;
@@ -31,13 +27,7 @@ public class SlashCommand extends ListenerAdapter {
     private JDA jda;
 
     @Autowired
-    private SessionManager sessionManager;
-
-    @Autowired
-    private AudioProcessor audioProcessor;
-
-    @Autowired
-    private AudioQueueManager audioQueueManager;
+    private GuildSessionRegistry guildSessionRegistry;
 
     @Value("${discord.guild-id:}")
     private String guildId;
@@ -119,40 +109,31 @@ public class SlashCommand extends ListenerAdapter {
                 }
 
                 if (event.getName().equals("join")) {
-                    boolean alreadyConnected = jda.getGuilds().stream().anyMatch(g -> g.getAudioManager().isConnected());
-
-                    if (alreadyConnected) {
-                        event.reply("このBotはすべてのサーバーのうち1つのVC二しか参加できません").setEphemeral(true).queue();
+                    // セッションはギルドごとに分かれているので、参加できないのは同じサーバーで 2 つ目の VC だけ
+                    if (guildSessionRegistry.contains(guild.getId()) || guild.getAudioManager().isConnected()) {
+                        event.reply("このサーバーではすでにVCに参加しています").setEphemeral(true).queue();
                         return;
                     }
 
-
-
-                    boolean geminiCreated = sessionManager.createSession();
-                    if (!geminiCreated) {
-                        logger.error("Failed to create Gemini session for guild: {}", guild.getId());
+                    final var session = guildSessionRegistry.open(guild.getId());
+                    if (session == null) {
+                        event.reply("Geminiに接続できませんでした").setEphemeral(true).queue();
                         return;
                     }
                     logger.info("Gemini session created successfully for guild: {}", guild.getId());
 
                     final var audioManager = guild.getAudioManager();
-                    final var sharedAudioData = new SharedAudioData();
-                    final var scheduler = new DataCheckScheduler(sharedAudioData);
-                    scheduler.start();
-                    final AudioPlayerManager playerManager = new DefaultAudioPlayerManager();
-                    playerManager.registerSourceManager(new CustomInputStreamSourceManager());
-                    AudioSourceManagers.registerLocalSource(playerManager);
-
-                    final var Handler = new AudioHandler(audioProcessor, sharedAudioData, playerManager, guild.getId(), audioQueueManager);
-
-                    audioManager.setReceivingHandler(Handler);
-                    audioManager.setSendingHandler(Handler);
+                    audioManager.setReceivingHandler(session.getHandler());
+                    audioManager.setSendingHandler(session.getHandler());
 
                     logger.info("Bot joining voice channel: {} in guild: {}", voiceChannel.getName(), guild.getName());
                     guild.getAudioManager().openAudioConnection(voiceChannel);
                     event.reply("VCに参加しました").setEphemeral(true).queue();
                 } else if (event.getName().equals("leave")) {
-                    sessionManager.removeSession();
+                    // 送受信を止めてから閉じるので、返却したプレイヤーが JDA から呼ばれることはない
+                    guild.getAudioManager().setSendingHandler(null);
+                    guild.getAudioManager().setReceivingHandler(null);
+                    guildSessionRegistry.close(guild.getId());
 
                     logger.info("Bot leaving voice channel: {} in guild: {}", voiceChannel.getName(), guild.getName());
                     guild.getAudioManager().closeAudioConnection();
@@ -169,7 +150,7 @@ public class SlashCommand extends ListenerAdapter {
     public void disconnectFromAllVC() {
         logger.info("Bot shutting down: Disconnecting from all voice channels...");
         try {
-            sessionManager.shutdownAllSessions();
+            guildSessionRegistry.closeAll();
 
             int disconnectedCount = 0;
             for (Guild guild : jda.getGuilds()) {
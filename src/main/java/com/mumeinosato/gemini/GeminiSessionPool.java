@@ -0,0 +1,231 @@
+package com.mumeinosato.gemini;
+
+import com.google.genai.AsyncSession;
+import com.google.genai.Client;
+import com.google.genai.types.LiveConnectConfig;
+import com.google.genai.types.LiveServerMessage;
+import com.google.genai.types.SessionResumptionConfig;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 接続済みの Gemini Live セッションを用意しておくプール。
+ * /join ではここから借りるだけなので、WebSocket の接続やセットアップを待たずに済む。
+ * 借りられた分はバックグラウンドで補充し、使われないまま期限が過ぎたものや切断されたものは定期的に入れ替える。
+ *
+ * <p>受信は接続した時点で始め、届いたメッセージは借りた側が設定したリスナーに転送する。
+ */
+@Component
+public class GeminiSessionPool {
+    private static final Logger logger = LogManager.getLogger(GeminiSessionPool.class);
+
+    @Value("${gemini.key}")
+    private String apiKey;
+
+    // 待機させておくセッション数（0 で無効。毎回接続する）
+    @Value("${gemini.pool.size:2}")
+    private int size;
+
+    // これより長く待機したセッションは、サーバー側で切られる前に接続し直す
+    @Value("${gemini.pool.idle-expiry-ms:480000}")
+    private long idleExpiryMillis;
+
+    @Value("${gemini.pool.health-check-ms:30000}")
+    private long healthCheckMillis;
+
+    @Value("${gemini.pool.connect-timeout-ms:10000}")
+    private long connectTimeoutMillis;
+
+    private final Deque<PooledSession> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService executor;
+    private Client client;
+    private String modelId;
+    private LiveConnectConfig config;
+    // 補充のために接続中の数
+    private int connecting;
+    private volatile boolean closed;
+
+    public GeminiSessionPool() {
+        final var executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "gemini-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.executor = executor;
+    }
+
+    /**
+     * 接続設定を決めて補充と定期的な確認を始める。設定はすべてのセッションで共通。
+     */
+    public synchronized void start(final String modelId, final LiveConnectConfig config) {
+        this.client = Client.builder().apiKey(this.apiKey).build();
+        this.modelId = modelId;
+        this.config = config;
+        this.executor.scheduleWithFixedDelay(this::checkHealth, this.healthCheckMillis, this.healthCheckMillis, TimeUnit.MILLISECONDS);
+        this.refill();
+        logger.info("Gemini session pool started (size: {})", this.size);
+    }
+
+    /**
+     * 接続済みのセッションを 1 つ借りる。待機中のものがなければその場で接続する（失敗した場合は null）。
+     * 返却はしない。使い終わったら {@link PooledSession#close()} で切断する。
+     */
+    public PooledSession lease() {
+        PooledSession session;
+        synchronized (this) {
+            while ((session = this.idle.poll()) != null && !this.isUsable(session))
+                session.close();
+            this.refill();
+        }
+
+        if (session != null) {
+            logger.debug("Leased pooled Gemini session ({} idle)", this.getIdleCount());
+            return session;
+        }
+
+        logger.info("No pooled Gemini session available, connecting now");
+        return this.connect(this.config);
+    }
+
+    /**
+     * 切断されたセッションを、サーバーから受け取った再開用のハンドルで接続し直す。会話の文脈はサーバー側で引き継がれる。
+     * ハンドルがない場合や再開できなかった場合は null を返す（呼び出し側で {@link #lease()} に切り替える）。
+     */
+    public PooledSession resume(final String handle) {
+        if (handle == null || this.config == null)
+            return null;
+
+        final var resumeConfig = this.config.toBuilder()
+                .sessionResumption(SessionResumptionConfig.builder().handle(handle).transparent(true).build())
+                .build();
+        return this.connect(resumeConfig);
+    }
+
+    public synchronized int getIdleCount() {
+        return this.idle.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.closed = true;
+        this.executor.shutdownNow();
+        synchronized (this) {
+            this.idle.forEach(PooledSession::close);
+            this.idle.clear();
+        }
+    }
+
+    // 待機中と接続中を合わせて size 個になるまで、バックグラウンドで接続する
+    private synchronized void refill() {
+        if (this.closed || this.config == null)
+            return;
+
+        while (this.idle.size() + this.connecting < this.size) {
+            this.connecting++;
+            this.executor.execute(() -> {
+                final var session = this.connect(this.config);
+                synchronized (this) {
+                    this.connecting--;
+                    if (session == null)
+                        return;
+                    if (this.closed)
+                        session.close();
+                    else
+                        this.idle.add(session);
+                }
+            });
+        }
+    }
+
+    private void checkHealth() {
+        synchronized (this) {
+            final var iterator = this.idle.iterator();
+            while (iterator.hasNext()) {
+                final var session = iterator.next();
+                if (this.isUsable(session))
+                    continue;
+
+                logger.debug("Replacing {} pooled Gemini session", session.isAlive() ? "expired" : "disconnected");
+                iterator.remove();
+                session.close();
+            }
+        }
+        this.refill();
+    }
+
+    private boolean isUsable(final PooledSession session) {
+        return session.isAlive() && System.currentTimeMillis() - session.getConnectedAt() < this.idleExpiryMillis;
+    }
+
+    private PooledSession connect(final LiveConnectConfig config) {
+        try {
+            final var session = this.client.async.live.connect(this.modelId, config)
+                    .get(this.connectTimeoutMillis, TimeUnit.MILLISECONDS);
+            return new PooledSession(session);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (final Exception e) {
+            logger.error("Failed to connect Gemini session: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * プールが用意した 1 本の接続。受信したメッセージは messageListener に、切断は closeListener に知らせる。
+     */
+    public static class PooledSession {
+        @Getter
+        private final AsyncSession session;
+        @Getter
+        private final long connectedAt = System.currentTimeMillis();
+        @Getter
+        private volatile boolean alive = true;
+        @Setter
+        private volatile Consumer<LiveServerMessage> messageListener;
+        @Setter
+        private volatile Runnable closeListener;
+
+        private PooledSession(final AsyncSession session) {
+            this.session = session;
+            session.receive(this::forward).whenComplete((result, e) -> {
+                if (e != null && this.alive)
+                    logger.warn("Gemini session closed: {}", e.getMessage());
+                this.alive = false;
+                final var listener = this.closeListener;
+                if (listener != null)
+                    listener.run();
+            });
+        }
+
+        private void forward(final LiveServerMessage message) {
+            final var listener = this.messageListener;
+            if (listener != null)
+                listener.accept(message);
+        }
+
+        public void close() {
+            this.messageListener = null;
+            this.closeListener = null;
+            this.alive = false;
+            try {
+                this.session.close();
+            } catch (final Exception e) {
+                logger.error("Error closing Gemini session", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.mumeinosato.gemini;
+
+/**
+ * 音声で返答するモードで、Gemini から届いた音声を受け取る。
+ * どちらも Gemini の受信スレッドから呼ばれるので、時間のかかる処理はしないこと。
+ */
+public interface ResponseAudioListener {
+    // 24kHz / 16bit / モノラル / リトルエンディアンの PCM。届いた順に呼ばれる
+    void onAudio(byte[] pcm);
+
+    // 1 回の返答が終わった
+    void onTurnComplete();
+}
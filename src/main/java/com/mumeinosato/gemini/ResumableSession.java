@@ -0,0 +1,246 @@
+package com.mumeinosato.gemini;
+
+import com.google.genai.types.LiveSendRealtimeInputParameters;
+import com.google.genai.types.LiveServerMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 切断されても自動で接続し直す Gemini Live セッション。
+ * サーバーから届く再開用のハンドルを覚えておき、接続し直すときに渡して会話の文脈を引き継ぐ。
+ * 返答が届いていない入力は上限付きで保持し、接続し直した後に送り直す。
+ *
+ * <p>接続し直すまでの間隔は指数的に延ばす。サーバーから切断の予告（goAway）が届いた場合は、切られる前に接続し直す。
+ */
+public class ResumableSession {
+    private static final Logger logger = LogManager.getLogger(ResumableSession.class);
+    // ハンドルでの再開がこの回数続けて失敗したら、文脈は諦めて新しいセッションを借りる
+    private static final int RESUME_ATTEMPTS = 2;
+    // 接続ごとの最初の入力の通し番号（0 番は接続時に送られる setup）
+    private static final long FIRST_INPUT_INDEX = 1;
+
+    private final String guildId;
+    private final GeminiSessionPool pool;
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<LiveServerMessage> messageListener;
+    // 接続し直したときに、送り直す前に呼ばれる（生成途中の返答を捨てるため）
+    private final Runnable reconnectListener;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long maxReplayBytes;
+
+    // 以下は this で排他する
+    private GeminiSessionPool.PooledSession current;
+    private String resumptionHandle;
+    private final Deque<Pending> replay = new ArrayDeque<>();
+    private long replayBytes;
+    // 現在の接続で送ったメッセージの通し番号（サーバーが処理済みの位置を知らせてくる場合に使う）。
+    // 数え方がずれていても、処理済みの入力を 1 つ余分に送り直すだけで済む
+    private long nextIndex;
+    private int attempt;
+    private boolean reconnecting;
+    // 接続し直した後、送り直すまでの間。この間に送られた入力は溜めておき、送り直す分の後ろに並べる
+    private boolean resuming;
+    private boolean closed;
+
+    private record Pending(LiveSendRealtimeInputParameters parameters, int bytes, long index) {}
+
+    public ResumableSession(final String guildId, final GeminiSessionPool pool, final ScheduledExecutorService scheduler,
+                            final Consumer<LiveServerMessage> messageListener, final Runnable reconnectListener,
+                            final long initialBackoffMillis, final long maxBackoffMillis, final long maxReplayBytes) {
+        this.guildId = guildId;
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.messageListener = messageListener;
+        this.reconnectListener = reconnectListener;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxReplayBytes = maxReplayBytes;
+    }
+
+    /**
+     * 最初の接続を引き継ぐ。すでに切断されていた場合は false を返す。
+     */
+    public synchronized boolean attach(final GeminiSessionPool.PooledSession session) {
+        this.current = session;
+        this.nextIndex = FIRST_INPUT_INDEX;
+        session.setMessageListener(message -> this.onMessage(session, message));
+        session.setCloseListener(() -> this.onClose(session));
+        return session.isAlive();
+    }
+
+    /**
+     * realtime input を送る。接続し直している最中は溜めておき、つながった時点で送る。
+     * bytes は送り直し用のバッファの上限の計算に使う音声のバイト数。
+     */
+    public synchronized void send(final LiveSendRealtimeInputParameters parameters, final int bytes) {
+        if (this.closed)
+            return;
+
+        final var pending = new Pending(parameters, bytes, this.nextIndex++);
+        this.remember(pending);
+        if (this.current != null && this.current.isAlive() && !this.resuming)
+            this.transmit(this.current, pending);
+    }
+
+    public synchronized boolean isConnected() {
+        return this.current != null && this.current.isAlive();
+    }
+
+    public synchronized void close() {
+        this.closed = true;
+        this.replay.clear();
+        this.replayBytes = 0;
+        if (this.current != null)
+            this.current.close();
+        this.current = null;
+    }
+
+    private void transmit(final GeminiSessionPool.PooledSession session, final Pending pending) {
+        session.getSession().sendRealtimeInput(pending.parameters())
+                .exceptionally(e -> {
+                    // 送れなかった分は送り直し用のバッファに残っているので、接続し直した後に送られる
+                    logger.warn("Failed to send realtime input for guild {}: {}", this.guildId, e.getMessage());
+                    return null;
+                });
+    }
+
+    private void remember(final Pending pending) {
+        this.replay.add(pending);
+        this.replayBytes += pending.bytes();
+        // 上限を超えたら古い入力から諦める
+        while (this.replayBytes > this.maxReplayBytes && this.replay.size() > 1)
+            this.replayBytes -= this.replay.poll().bytes();
+    }
+
+    private void onMessage(final GeminiSessionPool.PooledSession session, final LiveServerMessage message) {
+        synchronized (this) {
+            if (session != this.current)
+                return;
+
+            message.sessionResumptionUpdate().ifPresent(update -> {
+                if (update.resumable().orElse(false))
+                    update.newHandle().ifPresent(handle -> this.resumptionHandle = handle);
+                // サーバーが処理済みの入力は送り直さない
+                update.lastConsumedClientMessageIndex().ifPresent(this::acknowledge);
+            });
+
+            // 返答が完了した入力はもう送り直す必要がない
+            if (message.serverContent().flatMap(content -> content.turnComplete()).orElse(false)) {
+                this.replay.clear();
+                this.replayBytes = 0;
+            }
+
+            if (message.goAway().isPresent()) {
+                logger.info("Gemini session for guild {} is going away, reconnecting early", this.guildId);
+                this.scheduleReconnect(0);
+            }
+        }
+
+        this.messageListener.accept(message);
+    }
+
+    private void acknowledge(final long index) {
+        while (!this.replay.isEmpty() && this.replay.peek().index() <= index)
+            this.replayBytes -= this.replay.poll().bytes();
+    }
+
+    private synchronized void onClose(final GeminiSessionPool.PooledSession session) {
+        if (this.closed || session != this.current)
+            return;
+
+        logger.warn("Gemini session for guild {} disconnected, reconnecting", this.guildId);
+        this.scheduleReconnect(0);
+    }
+
+    private void scheduleReconnect(final long delayMillis) {
+        if (this.reconnecting || this.closed)
+            return;
+
+        this.reconnecting = true;
+        this.scheduler.schedule(this::reconnect, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // 再接続用のスレッドで実行する。接続を待つ間と reconnectListener の呼び出し中はロックを持たない
+    // （reconnectListener は呼び出し側のロックを取るので、このロックを持ったまま呼ぶとデッドロックする）
+    private void reconnect() {
+        final String handle;
+        final int attempt;
+        synchronized (this) {
+            if (this.closed)
+                return;
+            handle = this.resumptionHandle;
+            attempt = this.attempt++;
+        }
+
+        final var resume = handle != null && attempt < RESUME_ATTEMPTS;
+        final var session = resume ? this.pool.resume(handle) : this.pool.lease();
+
+        synchronized (this) {
+            this.reconnecting = false;
+            this.resuming = false;
+            if (this.closed) {
+                if (session != null)
+                    session.close();
+                return;
+            }
+
+            if (session == null) {
+                // 最初は短く、失敗が続くほど間隔を延ばす（揃って再接続しないように揺らぎを加える）
+                final var backoff = Math.min(this.maxBackoffMillis, this.initialBackoffMillis << Math.min(attempt, 20));
+                final var delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                logger.warn("Reconnect attempt {} failed for guild {}, retrying in {} ms", attempt + 1, this.guildId, delay);
+                this.scheduleReconnect(delay);
+                return;
+            }
+
+            if (!resume) {
+                // 新しいセッションでは以前のハンドルは使えない
+                if (handle != null)
+                    logger.warn("Could not resume Gemini session for guild {}, continuing in a new session", this.guildId);
+                this.resumptionHandle = null;
+            }
+
+            final var previous = this.current;
+            this.attempt = 0;
+            final var attached = this.attach(session);
+            if (previous != null)
+                previous.close();
+            if (!attached) {
+                this.scheduleReconnect(this.initialBackoffMillis);
+                return;
+            }
+            this.resuming = true;
+        }
+
+        // 送り直した入力への返答が届く前に、生成途中だった返答を捨てさせる
+        this.reconnectListener.run();
+
+        synchronized (this) {
+            // 待っている間に閉じられたか、さらに接続し直していた場合は、そちらに任せる
+            if (this.closed || this.current != session)
+                return;
+            this.resuming = false;
+
+            // 返答が届いていない入力を、元の順序で送り直す（この接続ではまだ何も送っていない）
+            final var pending = new ArrayDeque<>(this.replay);
+            this.replay.clear();
+            this.replayBytes = 0;
+            this.nextIndex = FIRST_INPUT_INDEX;
+            for (final var input : pending) {
+                final var renumbered = new Pending(input.parameters(), input.bytes(), this.nextIndex++);
+                this.remember(renumbered);
+                this.transmit(session, renumbered);
+            }
+            logger.info("Gemini session for guild {} {} ({} inputs replayed)",
+                    this.guildId, resume ? "resumed" : "reconnected", pending.size());
+        }
+    }
+}
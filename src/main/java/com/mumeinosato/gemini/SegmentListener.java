@@ -0,0 +1,13 @@
+package com.mumeinosato.gemini;
+
+import com.mumeinosato.metrics.UtteranceTrace;
+
+/**
+ * 返答のテキストを文ごとに、区切りが揃った時点で受け取る。
+ * Gemini の受信スレッドから呼ばれるので、時間のかかる処理はしないこと。
+ */
+@FunctionalInterface
+public interface SegmentListener {
+    // trace は返答の元になった発話の記録（ストリーミング入力などで分からない場合は null）
+    void onSegment(String guildId, String segment, UtteranceTrace trace);
+}
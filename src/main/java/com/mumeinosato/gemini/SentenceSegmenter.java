@@ -0,0 +1,64 @@
+package com.mumeinosato.gemini;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 少しずつ届く返答のテキストを、読み上げ単位の文に区切る。
+ * 「。！？」と改行では必ず区切り、「、」はある程度の長さになってから区切る。
+ * 区切りが来ないまま長くなった場合は MAX_LENGTH 文字で区切る。
+ */
+public class SentenceSegmenter {
+    // これより短い間は「、」で区切らない（細かすぎると読み上げが不自然になる）
+    private static final int MIN_CLAUSE_LENGTH = 12;
+    private static final int MAX_LENGTH = 50;
+
+    private final StringBuilder pending = new StringBuilder();
+
+    /**
+     * text を追加し、区切りまで揃った文を返す（なければ空のリスト）。
+     */
+    public List<String> append(final String text) {
+        final var segments = new ArrayList<String>();
+
+        for (int i = 0; i < text.length(); i++) {
+            final var c = text.charAt(i);
+            // 文頭の閉じ括弧や続きの記号は前の文の一部なので、読み上げには含めない
+            if (this.pending.isEmpty() && (isTerminator(c) || isCloser(c) || Character.isWhitespace(c)))
+                continue;
+
+            this.pending.append(c);
+            if (isTerminator(c)
+                    || (c == '、' && this.pending.length() >= MIN_CLAUSE_LENGTH)
+                    || this.pending.length() >= MAX_LENGTH)
+                this.emit(segments);
+        }
+        return segments;
+    }
+
+    // 返答の最後に、区切りが来ていない残りを返す
+    public List<String> flush() {
+        final var segments = new ArrayList<String>();
+        this.emit(segments);
+        return segments;
+    }
+
+    public void reset() {
+        this.pending.setLength(0);
+    }
+
+    private void emit(final List<String> segments) {
+        final var segment = this.pending.toString().trim();
+        this.pending.setLength(0);
+        if (!segment.isEmpty())
+            segments.add(segment);
+    }
+
+    private static boolean isTerminator(final char c) {
+        return c == '。' || c == '！' || c == '？' || c == '!' || c == '?' || c == '\n';
+    }
+
+    private static boolean isCloser(final char c) {
+        return c == '」' || c == '』' || c == '）' || c == ')' || c == '、';
+    }
+}
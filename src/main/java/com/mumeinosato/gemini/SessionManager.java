@@ -1,30 +1,94 @@
 package com.mumeinosato.gemini;
 
-import com.google.genai.AsyncSession;
-import com.google.genai.Client;
 import com.google.genai.types.*;
+import com.mumeinosato.metrics.PipelineMetrics;
+import com.mumeinosato.metrics.UtteranceTrace;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * ギルドごとの Gemini Live セッションを管理する。
+ * 返答のテキストや途中の状態はセッションごとに持つので、複数のギルドで同時に会話しても混ざらない。
+ *
+ * <p>送った発話はセッションごとのターンのキューに順に並べ、返答が完了するたびに先頭のターンに割り当てる。
+ * Gemini は入力を届いた順に処理するので、続けて送った発話の返答もそれぞれのターンに届く。
+ */
 @Component
 public class SessionManager {
     private static final Logger logger = LogManager.getLogger(SessionManager.class);
+    private static final String MODEL_ID = "gemini-2.0-flash-live-001";
 
-    private GeminiSession session;
-    private StringBuilder responseBuffer = new StringBuilder();
-    private CompletableFuture<String> responseFuture;
+    @Autowired
+    private GeminiSessionPool sessionPool;
 
-    @Value("${gemini.key}")
-    private String apiKey;
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    private final Map<String, GeminiSession> sessions = new ConcurrentHashMap<>();
+    // 切断されたセッションの再接続と、返答が届かないターンの期限切れ（全ギルドで共有）
+    private final ScheduledThreadPoolExecutor reconnectExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "gemini-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, ResponseAudioListener> responseAudioListeners = new ConcurrentHashMap<>();
+    // 返答のテキストを文ごとに、区切りが揃った時点で渡す
+    @Setter
+    private volatile SegmentListener segmentListener;
+
+    @Value("${gemini.input-mode:BATCH}")
+    private InputMode inputMode;
+
+    @Value("${gemini.activity-detection:SERVER}")
+    private ActivityDetection activityDetection;
+
+    // TEXT: 返答のテキストを TTS サーバーで読み上げる / AUDIO: Gemini が生成した音声をそのまま再生する
+    @Value("${gemini.response-modality:TEXT}")
+    private ResponseModality responseModality;
+
+    @Value("${gemini.voice:Kore}")
+    private String voice;
+
+    @Value("${gemini.reconnect.initial-backoff-ms:200}")
+    private long initialBackoffMillis;
+
+    @Value("${gemini.reconnect.max-backoff-ms:10000}")
+    private long maxBackoffMillis;
+
+    // 返答が届くまで送り直せるように保持しておく入力の上限（16kHz モノラルで約 30 秒）
+    @Value("${gemini.reconnect.replay-bytes:1048576}")
+    private long maxReplayBytes;
+
+    // 1 ターンの返答を待つ時間。過ぎたターンは取り消したターンと同じく、キューに残して返答を読み捨てる
+    @Value("${gemini.turn-timeout-ms:30000}")
+    private long turnTimeoutMillis;
+
+    // 期限切れのターンをキューから外すまでの時間（後ろに次のターンが並んでいる場合だけ外す）
+    // これより遅れて届いた返答は、次のターンの返答として扱われてしまう
+    @Value("${gemini.turn-discard-ms:120000}")
+    private long turnDiscardMillis;
+
+    private final AtomicLong nextTurnId = new AtomicLong();
 
     private String prompt = "女子高校生,敬語ではなく砕けたかんじで,1~2文ぐらいで短く,会話がつながるようにして,絵文字は使わないで,アルファベットは読み上げられないから、カタカナにして";
     //private String prompt = "女子高校生,敬語ではなく砕けたかんじで,1文で短く,会話がつながるようにして,絵文字は使わないで,アルファベットは読み上げられないから、カタカナにして";
@@ -33,137 +97,449 @@ public class SessionManager {
 
     private static class GeminiSession {
         @Getter
-        private final AsyncSession session;
+        private final String guildId;
+        // 切断されても自動で接続し直すので、active の間は常に送信できる
+        @Getter
+        @Setter
+        private ResumableSession connection;
         @Getter
         @Setter
         private volatile boolean active;
+        // 以下はこのセッションで排他する（受信スレッドのほか、送信や再接続、タイムアウトのスレッドからも触る）
+        // 返答を待っているターン（送った順）。先頭が現在返答を受信中のターン
+        private final Deque<Turn> turns = new ArrayDeque<>();
+        private final SentenceSegmenter segmenter = new SentenceSegmenter();
 
-        public GeminiSession(AsyncSession session) {
-            this.session = session;
+        public GeminiSession(String guildId) {
+            this.guildId = guildId;
             this.active = true;
         }
 
-        @PreDestroy
         public void shutdown() {
-            try {
-                this.active = false;
-                if (session != null)
-                    session.close();
-            } catch (Exception e) {
-                Logger logger = LogManager.getLogger(SessionManager.class);
-                logger.error("Error shutting down session", e);
-            }
+            this.active = false;
+            if (connection != null)
+                connection.close();
         }
     }
 
-    public boolean createSession() {
-        if (session != null && session.isActive()) {
-            logger.warn("Session already exists and is active");
-            return true;
+    /**
+     * 1 回の発話とその返答。ストリーミング入力のように発話を送らずに返答が届いた場合は、その場で作る（待っている側はいない）。
+     */
+    private static class Turn {
+        @Getter
+        private final long id;
+        @Getter
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        private final StringBuilder text = new StringBuilder();
+        // 発話から再生までの記録（返答だけが届いたターンでは null）
+        private final UtteranceTrace trace;
+        // 取り消されたターンはキューに残し、サーバーから届く残りの返答を読み捨てる
+        private boolean cancelled;
+        // 期限切れになった時刻（System.nanoTime()）。0 はまだ期限内
+        private long expiredAt;
+
+        private Turn(long id, UtteranceTrace trace) {
+            this.id = id;
+            this.trace = trace;
+        }
+
+        private void mark(UtteranceTrace.Stage stage) {
+            if (trace != null)
+                trace.mark(stage);
+        }
+    }
+
+    // 先頭のターン。キューが空なら返答だけが届いたターンとして作る
+    private Turn currentTurn(GeminiSession session) {
+        var turn = session.turns.peek();
+        if (turn == null) {
+            turn = new Turn(nextTurnId.incrementAndGet(), null);
+            session.turns.add(turn);
         }
+        return turn;
+    }
 
-        try {
-            Client client = Client.builder().apiKey(apiKey).build();
-            String modelId = "gemini-2.0-flash-live-001";
+    // 接続設定はどのセッションでも同じなので、起動時に 1 度だけ作ってプールに渡す
+    @PostConstruct
+    public void startSessionPool() {
+        sessionPool.start(MODEL_ID, buildConnectConfig());
+    }
 
-            LiveConnectConfig config = LiveConnectConfig.builder()
-                    .responseModalities(Modality.Known.TEXT)
-                    .systemInstruction(systemInstruction)
-                    .build();
+    @PreDestroy
+    public void shutdown() {
+        shutdownAllSessions();
+        reconnectExecutor.shutdownNow();
+    }
 
-            AsyncSession asyncSession = client.async.live.connect(modelId, config).get();
-            logger.info("Successfully created session");
+    private LiveConnectConfig buildConnectConfig() {
+        // 再開用のハンドルを受け取れるようにしておく（切断されたときに会話を引き継ぐ）。
+        // transparent にすると、サーバーが処理済みの入力の位置も届くので、送り直す入力を減らせる
+        LiveConnectConfig.Builder configBuilder = LiveConnectConfig.builder()
+                .systemInstruction(systemInstruction)
+                .sessionResumption(SessionResumptionConfig.builder().transparent(true).build());
 
-            session = new GeminiSession(asyncSession);
-            responseBuffer.setLength(0);
-            startReceivingResponses();
+        if (responseModality == ResponseModality.AUDIO) {
+            configBuilder.responseModalities(Modality.Known.AUDIO)
+                    .speechConfig(SpeechConfig.builder()
+                            .voiceConfig(VoiceConfig.builder()
+                                    .prebuiltVoiceConfig(PrebuiltVoiceConfig.builder().voiceName(voice)))
+                            .languageCode("ja-JP")
+                            .build());
+        } else {
+            configBuilder.responseModalities(Modality.Known.TEXT);
+        }
 
+        if (inputMode == InputMode.STREAMING) {
+            // SERVER: 発話区間の判定をサーバーに任せる / CLIENT: activityStart・activityEnd で区切る
+            configBuilder.realtimeInputConfig(RealtimeInputConfig.builder()
+                    .automaticActivityDetection(AutomaticActivityDetection.builder()
+                            .disabled(activityDetection == ActivityDetection.CLIENT)
+                            .build())
+                    .build());
+        }
+        return configBuilder.build();
+    }
+
+    public boolean createSession(String guildId) {
+        final var existing = sessions.get(guildId);
+        if (existing != null && existing.isActive()) {
+            logger.warn("Session already exists and is active for guild: {}", guildId);
             return true;
-        } catch (Exception e) {
-            logger.error("Failed to create session: {}", e.getMessage(), e);
+        }
+
+        // 接続済みのセッションを借りるので、通常は待たずに返る
+        final var pooled = sessionPool.lease();
+        if (pooled == null) {
+            logger.error("Failed to create session for guild: {}", guildId);
+            return false;
+        }
+
+        final var session = new GeminiSession(guildId);
+        session.setConnection(new ResumableSession(guildId, sessionPool, reconnectExecutor,
+                message -> handleResponse(session, message), () -> {
+                    discardPartialResponse(session);
+                    pipelineMetrics.geminiReconnected();
+                },
+                initialBackoffMillis, maxBackoffMillis, maxReplayBytes));
+        // 借りる前に切断されていた場合
+        if (!session.getConnection().attach(pooled)) {
+            session.shutdown();
             return false;
         }
+
+        sessions.put(guildId, session);
+        logger.info("Successfully created session for guild: {}", guildId);
+        return true;
     }
 
-    public void removeSession() {
+    public void removeSession(String guildId) {
+        final var session = sessions.remove(guildId);
         if (session != null) {
-            logger.info("Session removed");
+            logger.info("Session removed for guild: {}", guildId);
             session.shutdown();
-            session = null;
+            final List<Turn> pending;
+            synchronized (session) {
+                pending = new ArrayList<>(session.turns);
+                session.turns.clear();
+            }
+            pending.forEach(turn -> turn.getFuture().cancel(false));
         } else {
-            logger.warn("No session found");
+            logger.warn("No session found for guild: {}", guildId);
         }
     }
 
-    public CompletableFuture<String> sendAudioData(byte[] audioData) {
+    public void setResponseAudioListener(String guildId, ResponseAudioListener listener) {
+        responseAudioListeners.put(guildId, listener);
+    }
+
+    public void removeResponseAudioListener(String guildId, ResponseAudioListener listener) {
+        responseAudioListeners.remove(guildId, listener);
+    }
+
+    private GeminiSession activeSession(String guildId) {
+        final var session = sessions.get(guildId);
         if (session == null || !session.isActive()) {
-            logger.warn("No active session found");
+            logger.warn("No active session found for guild: {}", guildId);
             return null;
         }
+        return session;
+    }
+
+    /**
+     * 話し終わった発話を送る。返答が完了したら、そのテキスト（音声で返答する場合は空文字）で完了する。
+     * trace には送信と返答の時刻を記録する（null でもよい）。
+     */
+    public CompletableFuture<String> sendAudioData(String guildId, byte[] audioData, UtteranceTrace trace) {
+        final var session = activeSession(guildId);
+        if (session == null)
+            return null;
 
         if (audioData == null || audioData.length == 0) {
             logger.warn("Received null or empty audio data");
             return null;
         }
 
-        responseFuture = new CompletableFuture<>();
-
         LiveSendRealtimeInputParameters audioContent = LiveSendRealtimeInputParameters.builder()
                 .media(Blob.builder().mimeType("audio/pcm").data(audioData))
                 .build();
 
-        session.getSession().sendRealtimeInput(audioContent)
-                .exceptionally(e -> {
-                    logger.error("Failed to send realtime input", e);
-                    return null;
-                });
+        // キューに並べる順と送る順が入れ替わらないように、まとめて排他する
+        final var turn = new Turn(nextTurnId.incrementAndGet(), trace);
+        synchronized (session) {
+            session.turns.add(turn);
+            pruneExpiredTurns(session);
+            // 接続し直している最中でも、つながった時点で送られる
+            session.getConnection().send(audioContent, audioData.length);
+        }
+        turn.mark(UtteranceTrace.Stage.GEMINI_SENT);
+        logger.debug("Turn {} sent for guild: {}", turn.getId(), guildId);
 
-        return responseFuture.orTimeout(30, TimeUnit.SECONDS)
-                .whenComplete((r,e) -> responseFuture = null);
+        // 返答が届かなかったターンは待っている側に知らせ、遅れて届いた返答は読み捨てる
+        reconnectExecutor.schedule(() -> expireTurn(session, turn), turnTimeoutMillis, TimeUnit.MILLISECONDS);
+        return turn.getFuture();
     }
 
-    private void startReceivingResponses() {
-        CompletableFuture<Void> receiveFuture = session.getSession().receive(this::handleResponse);
+    // キューから外すと、遅れて届いた返答が後のターンに割り当てられてずれていくので、印を付けて残す
+    private void expireTurn(GeminiSession session, Turn turn) {
+        synchronized (session) {
+            if (turn.expiredAt != 0 || !session.turns.contains(turn))
+                return;
+            // 受信途中の返答の残りは読み上げない
+            if (!turn.cancelled && session.turns.peek() == turn)
+                session.segmenter.reset();
+            turn.cancelled = true;
+            turn.expiredAt = System.nanoTime();
+        }
+        // 取り消し済みのターンは待っている側がいないので、外せるようにするだけ
+        if (turn.getFuture().completeExceptionally(new TimeoutException())) {
+            pipelineMetrics.geminiTurnTimedOut();
+            logger.warn("Turn {} timed out for guild: {}", turn.getId(), session.getGuildId());
+        }
 
-        receiveFuture.exceptionally(e -> {
-            logger.error("Failed to receive session: {}", e.getMessage(), e);
-            session.setActive(false);
-            return null;
-        });
+        reconnectExecutor.schedule(() -> {
+            synchronized (session) {
+                pruneExpiredTurns(session);
+            }
+        }, turnDiscardMillis, TimeUnit.MILLISECONDS);
     }
 
-    private void handleResponse(LiveServerMessage message) {
-        message.serverContent().ifPresent(content -> {
-            if (content.turnComplete().orElse(false)) {
-                if (!responseBuffer.isEmpty()) {
-                    String completeResponse = responseBuffer.toString().trim();
-                    logger.info("Gemini complete response: {}", completeResponse);
-                    if (responseFuture != null && !responseFuture.isDone())
-                        responseFuture.complete(completeResponse);
-
-                    responseBuffer.setLength(0);
+    /**
+     * 期限切れから turnDiscardMillis 以上経ったターンを外す。後ろにターンが並んでいない場合は、
+     * 残しておいても割り当てがずれることはないので、次に発話を送るときまで残す。session で排他して呼ぶこと。
+     */
+    private void pruneExpiredTurns(GeminiSession session) {
+        final var now = System.nanoTime();
+        final var iterator = session.turns.iterator();
+        while (iterator.hasNext()) {
+            final var turn = iterator.next();
+            if (!iterator.hasNext())
+                return;
+            if (turn.expiredAt != 0 && now - turn.expiredAt >= TimeUnit.MILLISECONDS.toNanos(turnDiscardMillis)) {
+                iterator.remove();
+                logger.debug("Dropped expired turn {} for guild: {}", turn.getId(), session.getGuildId());
+            }
+        }
+    }
+
+    /**
+     * 返答を待っているターンをすべて取り消す（ユーザーが話し始めて返答を遮った場合）。
+     * 生成途中の返答はこれ以上読み上げず、取り消したターンへの返答が届いても読み捨てる。
+     * 取り消したターンの数を返す。
+     */
+    public int cancelTurns(String guildId) {
+        final var session = sessions.get(guildId);
+        if (session == null)
+            return 0;
+
+        final List<Turn> cancelled = new ArrayList<>();
+        synchronized (session) {
+            for (final var turn : session.turns) {
+                if (!turn.cancelled) {
+                    turn.cancelled = true;
+                    cancelled.add(turn);
                 }
-                System.out.println("Turn complete");
-            } else {
-                content.modelTurn().stream()
-                        .flatMap(modelTurn -> modelTurn.parts().stream())
-                        .flatMap(Collection::stream)
-                        .forEach(part -> part.text().ifPresent(responseBuffer::append));
             }
+            session.segmenter.reset();
+        }
+        cancelled.forEach(turn -> turn.getFuture().cancel(false));
+
+        if (!cancelled.isEmpty())
+            logger.info("Cancelled {} turns for guild: {}", cancelled.size(), guildId);
+        return cancelled.size();
+    }
+
+    public boolean isAudioResponse() {
+        return responseModality == ResponseModality.AUDIO;
+    }
+
+    public boolean isStreamingInput() {
+        return inputMode == InputMode.STREAMING;
+    }
+
+    // 発話の開始。サーバー側で区間検出する場合は何も送らない
+    public void startAudioStream(String guildId) {
+        if (activityDetection == ActivityDetection.CLIENT)
+            sendRealtimeInput(guildId, LiveSendRealtimeInputParameters.builder()
+                    .activityStart(ActivityStart.builder().build())
+                    .build(), 0);
+    }
+
+    // 話している途中の 16kHz モノラル PCM をそのまま転送する
+    public void streamAudio(String guildId, byte[] audioChunk) {
+        if (audioChunk == null || audioChunk.length == 0)
+            return;
+
+        sendRealtimeInput(guildId, LiveSendRealtimeInputParameters.builder()
+                .media(Blob.builder().mimeType("audio/pcm").data(audioChunk))
+                .build(), audioChunk.length);
+    }
+
+    // 発話の終了。サーバー側で区間検出する場合は音声ストリームの中断だけを伝える
+    public void endAudioStream(String guildId) {
+        if (activityDetection == ActivityDetection.CLIENT) {
+            sendRealtimeInput(guildId, LiveSendRealtimeInputParameters.builder()
+                    .activityEnd(ActivityEnd.builder().build())
+                    .build(), 0);
+        } else {
+            sendRealtimeInput(guildId, LiveSendRealtimeInputParameters.builder()
+                    .audioStreamEnd(true)
+                    .build(), 0);
+        }
+    }
+
+    private void sendRealtimeInput(String guildId, LiveSendRealtimeInputParameters parameters, int audioBytes) {
+        final var session = activeSession(guildId);
+        if (session == null)
+            return;
+
+        session.getConnection().send(parameters, audioBytes);
+    }
+
+    // 接続し直すと送り直した入力への返答が最初から届くので、生成途中の返答は捨てる
+    private void discardPartialResponse(GeminiSession session) {
+        synchronized (session) {
+            final var turn = session.turns.peek();
+            if (turn != null)
+                turn.text.setLength(0);
+            session.segmenter.reset();
+        }
+
+        final var audioListener = responseAudioListeners.get(session.getGuildId());
+        if (audioListener != null && responseModality == ResponseModality.AUDIO)
+            audioListener.onTurnComplete();
+    }
+
+    private void handleResponse(GeminiSession session, LiveServerMessage message) {
+        message.serverContent().ifPresent(content -> {
+            content.modelTurn().stream()
+                    .flatMap(modelTurn -> modelTurn.parts().stream())
+                    .flatMap(Collection::stream)
+                    .forEach(part -> handlePart(session, part));
+
+            // 新しい発話で返答が中断された場合も、そのターンはそこで終わる
+            final var interrupted = content.interrupted().orElse(false);
+            if (content.turnComplete().orElse(false) || interrupted)
+                completeTurn(session, interrupted);
         });
     }
 
-    public void shutdownAllSessions() {
-        logger.info("Shutting down session");
-        if (session != null) {
-            session.shutdown();
-            session = null;
+    private void completeTurn(GeminiSession session, boolean interrupted) {
+        final Turn turn;
+        final String completeResponse;
+        synchronized (session) {
+            turn = session.turns.poll();
+            completeResponse = turn != null ? turn.text.toString().trim() : "";
+            if (turn != null && turn.cancelled) {
+                logger.debug("Discarded response of cancelled turn {} for guild: {}", turn.getId(), session.getGuildId());
+                return;
+            }
+            // 中断された返答の残りは読み上げない
+            if (interrupted)
+                session.segmenter.reset();
+            else
+                session.segmenter.flush().forEach(segment -> emitSegment(session, segment, turn));
+        }
+        if (turn != null)
+            turn.mark(UtteranceTrace.Stage.TURN_COMPLETE);
+
+        final var turnId = turn != null ? turn.getId() : -1;
+        if (!completeResponse.isEmpty())
+            logger.info("Gemini {} response for guild {} (turn {}): {}",
+                    interrupted ? "interrupted" : "complete", session.getGuildId(), turnId, completeResponse);
+
+        final var audioListener = responseAudioListeners.get(session.getGuildId());
+        if (audioListener != null && responseModality == ResponseModality.AUDIO)
+            audioListener.onTurnComplete();
+
+        // 読み上げは文ごとに済んでいるので、待っている側には返答全体を知らせるだけ
+        // 音声で返答した場合はテキストが空なので空文字を返す
+        if (turn != null)
+            turn.getFuture().complete(completeResponse);
+
+        logger.debug("Turn {} complete for guild: {}", turnId, session.getGuildId());
+    }
+
+    private void handlePart(GeminiSession session, Part part) {
+        final Turn turn;
+        synchronized (session) {
+            turn = currentTurn(session);
+            if (turn.cancelled)
+                return;
+
+            // 読み上げの依頼より先に記録する
+            if (part.text().isPresent() || part.inlineData().isPresent())
+                turn.mark(UtteranceTrace.Stage.FIRST_TOKEN);
+            part.text().ifPresent(text -> {
+                turn.text.append(text);
+                // 返答の生成が終わるのを待たず、文が揃うたびに読み上げへ回す
+                session.segmenter.append(text).forEach(segment -> emitSegment(session, segment, turn));
+            });
         }
-        responseBuffer.setLength(0);
+
+        // 音声はチャンクごとに届くので、溜めずにそのまま再生側へ渡す
+        final var audioListener = responseAudioListeners.get(session.getGuildId());
+        if (audioListener != null)
+            part.inlineData().flatMap(Blob::data).ifPresent(audioListener::onAudio);
+    }
+
+    private void emitSegment(GeminiSession session, String segment, Turn turn) {
+        final var listener = segmentListener;
+        if (listener != null)
+            listener.onSegment(session.getGuildId(), segment, turn != null ? turn.trace : null);
+    }
+
+    public void shutdownAllSessions() {
+        logger.info("Shutting down {} sessions", sessions.size());
+        sessions.keySet().forEach(this::removeSession);
         logger.info("Sessions have been shut down");
     }
 
-    public boolean hasActiveSession() {
+    public boolean hasActiveSession(String guildId) {
+        final var session = sessions.get(guildId);
         return session != null && session.isActive();
     }
+
+    public int getActiveSessionCount() {
+        return (int) sessions.values().stream().filter(GeminiSession::isActive).count();
+    }
+
+    // 再接続中のセッションは含まない
+    public int getConnectedSessionCount() {
+        return (int) sessions.values().stream().filter(session -> session.getConnection().isConnected()).count();
+    }
+
+    public enum InputMode {
+        BATCH,
+        STREAMING
+    }
+
+    public enum ActivityDetection {
+        SERVER,
+        CLIENT
+    }
+
+    public enum ResponseModality {
+        TEXT,
+        AUDIO
+    }
 }
@@ -0,0 +1,92 @@
+package com.mumeinosato.metrics;
+
+import com.mumeinosato.audio.AudioPlayerPool;
+import com.mumeinosato.audio.AudioQueueManager;
+import com.mumeinosato.audio.GuildSessionRegistry;
+import com.mumeinosato.gemini.GeminiSessionPool;
+import com.mumeinosato.gemini.SessionManager;
+import com.mumeinosato.tts.TtsCache;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+
+/**
+ * 各コンポーネントが持っている数を、Prometheus が取得するときに問い合わせて公開する。
+ * 音声処理のスレッドでは何もしないので、ここで公開する値は負荷にならない。
+ */
+@Component
+public class PipelineGauges implements MeterBinder {
+    @Autowired
+    private GuildSessionRegistry guildSessionRegistry;
+
+    @Autowired
+    private AudioQueueManager audioQueueManager;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private GeminiSessionPool geminiSessionPool;
+
+    @Autowired
+    private AudioPlayerPool audioPlayerPool;
+
+    @Autowired
+    private TtsCache ttsCache;
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        Gauge.builder("voice.sessions.active", this.guildSessionRegistry, GuildSessionRegistry::size)
+                .description("Guilds with an open voice session")
+                .register(registry);
+
+        for (final var stage : AudioQueueManager.Stage.values()) {
+            final var tag = stage.name().toLowerCase(Locale.ROOT);
+            Gauge.builder("voice.queue.depth", this.audioQueueManager, queues -> queues.getDepth(stage))
+                    .description("Items waiting in a voice pipeline queue")
+                    .tag("stage", tag)
+                    .register(registry);
+            FunctionCounter.builder("voice.queue.dropped", this.audioQueueManager, queues -> queues.getDropped(stage))
+                    .description("Items dropped because a voice pipeline queue was full or coalesced")
+                    .tag("stage", tag)
+                    .register(registry);
+        }
+
+        Gauge.builder("gemini.sessions.active", this.sessionManager, SessionManager::getActiveSessionCount)
+                .description("Gemini Live sessions held by guilds")
+                .register(registry);
+        Gauge.builder("gemini.sessions.connected", this.sessionManager, SessionManager::getConnectedSessionCount)
+                .description("Gemini Live sessions currently connected (not reconnecting)")
+                .register(registry);
+        Gauge.builder("gemini.pool.idle", this.geminiSessionPool, GeminiSessionPool::getIdleCount)
+                .description("Pre-opened Gemini Live sessions waiting to be leased")
+                .register(registry);
+
+        Gauge.builder("lavaplayer.players", this.audioPlayerPool, AudioPlayerPool::getActivePlayers)
+                .description("Lavaplayer audio players")
+                .tag("state", "active")
+                .register(registry);
+        Gauge.builder("lavaplayer.players", this.audioPlayerPool, AudioPlayerPool::getIdlePlayers)
+                .description("Lavaplayer audio players")
+                .tag("state", "idle")
+                .register(registry);
+
+        FunctionCounter.builder("tts.cache.requests", this.ttsCache, TtsCache::getMemoryHits)
+                .description("TTS cache lookups")
+                .tag("result", "memory")
+                .register(registry);
+        FunctionCounter.builder("tts.cache.requests", this.ttsCache, TtsCache::getDiskHits)
+                .description("TTS cache lookups")
+                .tag("result", "disk")
+                .register(registry);
+        FunctionCounter.builder("tts.cache.requests", this.ttsCache, TtsCache::getMisses)
+                .description("TTS cache lookups")
+                .tag("result", "miss")
+                .register(registry);
+    }
+}
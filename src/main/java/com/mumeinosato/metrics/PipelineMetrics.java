@@ -0,0 +1,184 @@
+package com.mumeinosato.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 音声処理の各所から数える値を Micrometer に記録する。Actuator の /actuator/prometheus で公開される。
+ * 発話から返答の再生までの段ごとの遅延は、パーセンタイル（p50 / p95 / p99）をアプリケーション内で計算して公開し、一定間隔でログにも出す。
+ *
+ * <p>フレームの数など 20ms ごとに数える値は、登録済みの Counter を増やすだけにする。
+ * キューの深さなど問い合わせれば分かる値は {@link PipelineGauges} で公開する。
+ */
+@Component
+public class PipelineMetrics implements UtteranceTrace.Recorder {
+    private static final Logger logger = LogManager.getLogger(PipelineMetrics.class);
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 0 でログに出さない
+    @Value("${metrics.latency-log-interval-ms:60000}")
+    private long logIntervalMillis;
+
+    private final Map<UtteranceTrace.Stage, Timer> stageTimers = new EnumMap<>(UtteranceTrace.Stage.class);
+    private Timer totalTimer;
+    private Counter framesReceived;
+    // JDA が送信するフレームを問い合わせた結果（送れた / 再生中なのに用意できなかった / 再生していない）
+    private Counter framesSent;
+    private Counter framesMissed;
+    private Counter framesIdle;
+    private Counter geminiReconnects;
+    private Counter geminiTurnTimeouts;
+    private Timer ttsRequestTimer;
+    private Counter ttsErrors;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "pipeline-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PipelineMetrics() {}
+
+    // ログには出さず、meterRegistry に記録するだけにする
+    public PipelineMetrics(final MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.initialize();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        for (final var stage : UtteranceTrace.Stage.values()) {
+            if (stage.getPrevious() == null)
+                continue;
+
+            this.stageTimers.put(stage, Timer.builder("voice.pipeline.stage")
+                    .description("Latency of a voice pipeline stage since the previous stage")
+                    .tag("stage", stage.name().toLowerCase(Locale.ROOT))
+                    .tag("previous", stage.getPrevious().name().toLowerCase(Locale.ROOT))
+                    .publishPercentiles(PERCENTILES)
+                    .register(this.meterRegistry));
+        }
+        this.totalTimer = Timer.builder("voice.pipeline.total")
+                .description("Latency from the end of speech to the first reply frame sent to Discord")
+                .publishPercentiles(PERCENTILES)
+                .register(this.meterRegistry);
+
+        this.framesReceived = Counter.builder("voice.frames.received")
+                .description("20 ms audio frames received from Discord users")
+                .register(this.meterRegistry);
+        this.framesSent = this.providePolls("sent");
+        this.framesMissed = this.providePolls("missed");
+        this.framesIdle = this.providePolls("idle");
+        this.geminiReconnects = Counter.builder("gemini.reconnects")
+                .description("Gemini Live sessions reconnected after a disconnect or goAway")
+                .register(this.meterRegistry);
+        this.geminiTurnTimeouts = Counter.builder("gemini.turns.timeout")
+                .description("Gemini turns that got no response in time")
+                .register(this.meterRegistry);
+        this.ttsRequestTimer = Timer.builder("tts.request")
+                .description("Time until the TTS server starts responding")
+                .publishPercentiles(PERCENTILES)
+                .register(this.meterRegistry);
+        this.ttsErrors = Counter.builder("tts.errors")
+                .description("Failed TTS requests")
+                .register(this.meterRegistry);
+
+        if (this.logIntervalMillis > 0)
+            this.executor.scheduleWithFixedDelay(this::logSummary, this.logIntervalMillis, this.logIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * 新しい発話の記録を始める。話し終わりの時刻は trace を作った時点。
+     */
+    public UtteranceTrace attach(final UtteranceTrace trace) {
+        return trace.attach(this);
+    }
+
+    // JDA の受信スレッドからフレームごとに呼ばれる
+    public void frameReceived() {
+        this.framesReceived.increment();
+    }
+
+    // JDA の送信スレッドから 20ms ごとに呼ばれる。playing は返答を再生中かどうか
+    public void framePolled(final boolean provided, final boolean playing) {
+        if (provided)
+            this.framesSent.increment();
+        else if (playing)
+            this.framesMissed.increment();
+        else
+            this.framesIdle.increment();
+    }
+
+    public void geminiReconnected() {
+        this.geminiReconnects.increment();
+    }
+
+    public void geminiTurnTimedOut() {
+        this.geminiTurnTimeouts.increment();
+    }
+
+    public void ttsResponded(final long nanos) {
+        this.ttsRequestTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void ttsFailed() {
+        this.ttsErrors.increment();
+    }
+
+    private Counter providePolls(final String result) {
+        return Counter.builder("voice.frames.polled")
+                .description("Send-handler polls by JDA, by whether a reply frame was ready")
+                .tag("result", result)
+                .register(this.meterRegistry);
+    }
+
+    @Override
+    public void record(final UtteranceTrace.Stage stage, final long sincePrevious, final long sinceStart) {
+        final var timer = this.stageTimers.get(stage);
+        if (timer != null)
+            timer.record(sincePrevious, TimeUnit.NANOSECONDS);
+        if (stage == UtteranceTrace.Stage.FIRST_FRAME)
+            this.totalTimer.record(sinceStart, TimeUnit.NANOSECONDS);
+    }
+
+    private void logSummary() {
+        if (this.totalTimer.count() == 0)
+            return;
+
+        final var summary = new StringJoiner(", ");
+        this.stageTimers.forEach((stage, timer) -> {
+            if (timer.count() > 0)
+                summary.add(stage.name().toLowerCase(Locale.ROOT) + " " + percentiles(timer));
+        });
+        logger.info("Pipeline latency (p50/p95/p99 ms) total {} | {}", percentiles(this.totalTimer), summary);
+    }
+
+    private static String percentiles(final Timer timer) {
+        final var joiner = new StringJoiner("/");
+        for (final var value : timer.takeSnapshot().percentileValues())
+            joiner.add(String.valueOf(Math.round(value.value(TimeUnit.MILLISECONDS))));
+        return joiner.toString();
+    }
+}
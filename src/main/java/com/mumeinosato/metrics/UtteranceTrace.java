@@ -0,0 +1,88 @@
+package com.mumeinosato.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 1 回の発話が返答として再生されるまでの、段ごとの時刻。話し終わりを判定した時点で作り、発話や返答と一緒に各段へ渡す。
+ * 返答は文ごとに届くので、同じ段の時刻は最初に記録したものだけを残す。
+ *
+ * <p>記録は {@link System#nanoTime()} を配列に書くだけなので、本番でも常に有効にしておける。
+ * {@link Recorder} を設定してあれば、直前の段からの経過時間を記録のたびに渡す。
+ */
+public class UtteranceTrace {
+    public enum Stage {
+        // 話し終わりの判定
+        SPEECH_END(null),
+        // Gemini 向けのフォーマットへの変換
+        CONVERTED(SPEECH_END),
+        // Gemini への送信（送信キューでの待ち時間を含む）
+        GEMINI_SENT(CONVERTED),
+        // 返答の最初のテキストか音声
+        FIRST_TOKEN(GEMINI_SENT),
+        // 返答の完了
+        TURN_COMPLETE(FIRST_TOKEN),
+        // 最初の文の音声合成の依頼
+        TTS_REQUEST(FIRST_TOKEN),
+        // 合成した音声の最初の応答
+        TTS_FIRST_BYTE(TTS_REQUEST),
+        // 再生の準備ができた（lavaplayer のトラックの読み込み、または最初の Opus パケットのエンコード）
+        PLAYBACK_READY(TTS_FIRST_BYTE),
+        // Discord に最初のフレームを渡した
+        FIRST_FRAME(PLAYBACK_READY);
+
+        private final Stage previous;
+
+        Stage(final Stage previous) {
+            this.previous = previous;
+        }
+
+        public Stage getPrevious() {
+            return this.previous;
+        }
+    }
+
+    public interface Recorder {
+        // sincePrevious は直前の段から、sinceStart は話し終わりからの経過ナノ秒
+        void record(Stage stage, long sincePrevious, long sinceStart);
+    }
+
+    private final AtomicLongArray times = new AtomicLongArray(Stage.values().length);
+    private volatile Recorder recorder;
+
+    public UtteranceTrace() {
+        this.times.set(Stage.SPEECH_END.ordinal(), System.nanoTime());
+    }
+
+    // 以降の段の経過時間を recorder に渡す
+    public UtteranceTrace attach(final Recorder recorder) {
+        this.recorder = recorder;
+        return this;
+    }
+
+    /**
+     * stage の時刻を記録する。この呼び出しで記録した場合は true、すでに記録されていた場合は false を返す。
+     */
+    public boolean mark(final Stage stage) {
+        final var index = stage.ordinal();
+        // 2 文目以降はここで終わるので、フレームごとに呼んでも負荷にならない
+        if (this.times.get(index) != 0)
+            return false;
+
+        final var now = System.nanoTime();
+        if (!this.times.compareAndSet(index, 0, now))
+            return false;
+
+        final var recorder = this.recorder;
+        // 前の段を通らなかった場合（テキストのない返答など）は経過時間を記録しない
+        final var previous = stage.previous != null ? this.times.get(stage.previous.ordinal()) : 0;
+        if (recorder != null && previous != 0)
+            recorder.record(stage, now - previous, now - this.times.get(Stage.SPEECH_END.ordinal()));
+        return true;
+    }
+
+    // 記録していない段は -1
+    public long elapsedMillis(final Stage stage) {
+        final var time = this.times.get(stage.ordinal());
+        return time != 0 ? (time - this.times.get(Stage.SPEECH_END.ordinal())) / 1_000_000 : -1;
+    }
+}
@@ -0,0 +1,389 @@
+package com.mumeinosato.tts;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TTS の合成結果のキャッシュ。キーは正規化したテキストと声の設定の SHA-256。
+ * よく使う音声はメモリ上にバイト数の上限付きの LRU で持ち、あふれた音声はディスクに書き出す。
+ * ディスク上の音声はメモリに戻さず、メモリマップしたバッファをそのまま返す（読み込みは OS のページキャッシュに任せる）。
+ * ディスクの上限も超えたら古いものから削除する。ディスク上の音声は再起動後も使える。
+ *
+ * <p>一覧の更新だけをロックの中で行い、ファイルの書き出しと削除は専用のスレッドで順に行う。
+ * マップもロックの外で行うので、ディスクが遅くても他のギルドの問い合わせは待たされない。
+ */
+@Component
+public class TtsCache {
+    private static final Logger logger = LogManager.getLogger(TtsCache.class);
+    private static final String FILE_SUFFIX = ".wav";
+    // 書き出し途中のファイル。書き終えてから FILE_SUFFIX に名前を変える
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    @Value("${tts_cache.memory-bytes:16777216}")
+    private long maxMemoryBytes;
+
+    @Value("${tts_cache.disk-bytes:268435456}")
+    private long maxDiskBytes;
+
+    // これより大きい音声（長い文）は繰り返し使われることが少ないのでキャッシュしない
+    @Value("${tts_cache.max-entry-bytes:1048576}")
+    private int maxEntryBytes;
+
+    @Value("${tts_cache.directory:audio/tts-cache}")
+    private Path directory;
+
+    // 以下は this で排他する
+    // どちらも最後に使った順（先頭が最も古い）。disk には書き出し終えた音声だけを載せる
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    // メモリからあふれて書き出し中の音声（書き終えるまではここから返す）
+    private final Map<String, byte[]> spilling = new HashMap<>();
+    private long memoryBytes;
+    private long diskBytes;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // ファイルの書き出しと削除は 1 本のスレッドで順に行うので、同じキーのファイルを同時に触ることはない
+    private final ThreadPoolExecutor fileExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "tts-cache-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public TtsCache() {}
+
+    public TtsCache(final long maxMemoryBytes, final long maxDiskBytes, final int maxEntryBytes, final Path directory) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.directory = directory;
+        this.initialize();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        try {
+            Files.createDirectories(this.directory);
+            // 書き出し途中で終了したファイルは使えない
+            try (var files = Files.list(this.directory)) {
+                files.filter(file -> file.getFileName().toString().endsWith(PARTIAL_SUFFIX))
+                        .forEach(this::deleteFile);
+            }
+            // 前回までに書き出した音声を古い順に登録し直す
+            try (var files = Files.list(this.directory)) {
+                files.filter(file -> file.getFileName().toString().endsWith(FILE_SUFFIX))
+                        .sorted(Comparator.comparingLong(file -> file.toFile().lastModified()))
+                        .forEach(this::restore);
+            }
+            logger.info("TTS cache ready: {} entries on disk ({} bytes)", this.disk.size(), this.diskBytes);
+        } catch (final IOException e) {
+            logger.error("Failed to prepare TTS cache directory {}: {}", this.directory, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * テキストと声の設定（同じテキストでも声が変われば別の音声になる）からキーを作る。
+     */
+    public String key(final String text, final String voice) {
+        final var normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).strip().replaceAll("\\s+", " ");
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(voice.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 書き出し中の音声は書き終えてから止める
+        this.fileExecutor.shutdown();
+    }
+
+    /**
+     * キャッシュ済みの音声を読み取り専用で返す。ない場合は null。
+     * ディスク上の音声はメモリマップしたバッファを返す。
+     */
+    public ByteBuffer get(final String key) {
+        synchronized (this) {
+            var audio = this.memory.get(key);
+            if (audio == null)
+                audio = this.spilling.get(key);
+            if (audio != null) {
+                this.memoryHits.incrementAndGet();
+                return ByteBuffer.wrap(audio).asReadOnlyBuffer();
+            }
+
+            // 参照順を更新する
+            if (this.disk.get(key) == null) {
+                this.misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        // マップしている間に古い音声として削除されても、マップ済みのバッファは読める
+        final var mapped = this.map(key);
+        if (mapped == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.diskHits.incrementAndGet();
+        return mapped;
+    }
+
+    public void put(final String key, final byte[] audio) {
+        if (audio == null || audio.length == 0 || audio.length > this.maxEntryBytes)
+            return;
+
+        final List<Map.Entry<String, byte[]>> spilled;
+        synchronized (this) {
+            this.removeFromDisk(key);
+            this.spilling.remove(key);
+            spilled = this.putInMemory(key, audio);
+        }
+        for (final var entry : spilled)
+            this.fileExecutor.execute(() -> this.spill(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * source を読みながら内容を記録し、最後まで読み終えたらキャッシュに追加するストリームを返す。
+     * 途中で閉じられた場合や上限を超えた場合は追加しない。
+     */
+    public InputStream record(final String key, final InputStream source) {
+        return new RecordingInputStream(key, source);
+    }
+
+    public long getMemoryHits() {
+        return this.memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return this.diskHits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return this.memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return this.diskBytes;
+    }
+
+    // 書き出しと削除が済むまで待つ
+    void awaitFileOperations() throws InterruptedException, ExecutionException {
+        this.fileExecutor.submit(() -> {}).get();
+    }
+
+    // 上限を超えた分を古いものから外し、ディスクに書き出す音声として返す
+    private List<Map.Entry<String, byte[]>> putInMemory(final String key, final byte[] audio) {
+        final var previous = this.memory.put(key, audio);
+        if (previous != null)
+            this.memoryBytes -= previous.length;
+        this.memoryBytes += audio.length;
+
+        final List<Map.Entry<String, byte[]>> spilled = new ArrayList<>();
+        final var iterator = this.memory.entrySet().iterator();
+        while (this.memoryBytes > this.maxMemoryBytes && iterator.hasNext()) {
+            final var eldest = iterator.next();
+            if (eldest.getKey().equals(key))
+                continue;
+
+            iterator.remove();
+            this.memoryBytes -= eldest.getValue().length;
+            this.spilling.put(eldest.getKey(), eldest.getValue());
+            spilled.add(Map.entry(eldest.getKey(), eldest.getValue()));
+        }
+        return spilled;
+    }
+
+    // ファイル用のスレッドで実行する
+    private void spill(final String key, final byte[] audio) {
+        final var partial = this.directory.resolve(key + PARTIAL_SUFFIX);
+        try {
+            Files.write(partial, audio);
+            Files.move(partial, this.file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            logger.warn("Failed to spill TTS cache entry: {}", e.getMessage());
+            this.deleteFile(partial);
+            synchronized (this) {
+                if (this.spilling.remove(key, audio))
+                    this.evictions.incrementAndGet();
+            }
+            return;
+        }
+
+        final List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            // 書き出している間に同じ音声が追加し直されていれば、ファイルは要らない
+            if (!this.spilling.remove(key, audio)) {
+                expired.add(key);
+            } else {
+                this.disk.put(key, (long) audio.length);
+                this.diskBytes += audio.length;
+
+                final var iterator = this.disk.entrySet().iterator();
+                while (this.diskBytes > this.maxDiskBytes && iterator.hasNext()) {
+                    final var eldest = iterator.next();
+                    iterator.remove();
+                    this.diskBytes -= eldest.getValue();
+                    expired.add(eldest.getKey());
+                    this.evictions.incrementAndGet();
+                }
+            }
+        }
+        expired.forEach(expiredKey -> this.deleteFile(this.file(expiredKey)));
+    }
+
+    private void restore(final Path file) {
+        try {
+            final var name = file.getFileName().toString();
+            final var size = Files.size(file);
+            this.disk.put(name.substring(0, name.length() - FILE_SUFFIX.length()), size);
+            this.diskBytes += size;
+        } catch (final IOException e) {
+            logger.warn("Failed to restore TTS cache entry {}: {}", file, e.getMessage());
+        }
+    }
+
+    private ByteBuffer map(final String key) {
+        try (var channel = FileChannel.open(this.file(key), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (final IOException e) {
+            // 読めないファイルは一覧から外す（マップする直前に削除された場合はすでに外れている）
+            logger.warn("Failed to read TTS cache entry: {}", e.getMessage());
+            synchronized (this) {
+                this.removeFromDisk(key);
+            }
+            return null;
+        }
+    }
+
+    // this で排他して呼ぶ。ファイルの削除はファイル用のスレッドに任せる
+    private void removeFromDisk(final String key) {
+        final var size = this.disk.remove(key);
+        if (size == null)
+            return;
+
+        this.diskBytes -= size;
+        this.fileExecutor.execute(() -> this.deleteFile(this.file(key)));
+    }
+
+    private void deleteFile(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            // マップ中で削除できない環境では終了時に消す
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    private Path file(final String key) {
+        return this.directory.resolve(key + FILE_SUFFIX);
+    }
+
+    private class RecordingInputStream extends FilterInputStream {
+        private final String key;
+        private ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+
+        private RecordingInputStream(final String key, final InputStream source) {
+            super(source);
+            this.key = key;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final var b = super.read();
+            if (b < 0)
+                this.complete();
+            else
+                this.record(new byte[]{(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final var read = super.read(b, off, len);
+            if (read < 0)
+                this.complete();
+            else
+                this.record(b, off, read);
+            return read;
+        }
+
+        private void record(final byte[] b, final int off, final int len) {
+            if (this.recorded == null)
+                return;
+
+            if (this.recorded.size() + len > TtsCache.this.maxEntryBytes) {
+                this.recorded = null;
+                return;
+            }
+            this.recorded.write(b, off, len);
+        }
+
+        private void complete() {
+            if (this.recorded == null)
+                return;
+
+            TtsCache.this.put(this.key, this.recorded.toByteArray());
+            this.recorded = null;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // 読み飛ばした部分は記録できないので、このストリームはキャッシュしない
+            this.recorded = null;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
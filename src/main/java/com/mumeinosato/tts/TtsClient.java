@@ -0,0 +1,87 @@
+package com.mumeinosato.tts;
+
+import jakarta.annotation.PostConstruct;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * TTS サーバーのクライアント。HttpClient は 1 つを使い回すので、接続は呼び出しをまたいで再利用される。
+ * 読み上げるテキストは POST の本文（UTF-8）で送り、返ってきた音声はストリームのまま返す。
+ */
+@Component
+public class TtsClient {
+    private static final Logger logger = LogManager.getLogger(TtsClient.class);
+
+    @Value("${tts_server.url}")
+    private String url;
+
+    @Value("${tts_server.connect-timeout-ms:2000}")
+    private long connectTimeoutMillis;
+
+    // 応答ヘッダーが返ってくるまでの時間（本文の受信にはかからない）
+    @Value("${tts_server.request-timeout-ms:15000}")
+    private long requestTimeoutMillis;
+
+    // HTTP_2 は平文の場合でも h2c へのアップグレードを試し、対応していなければ HTTP/1.1 で接続を使い回す
+    @Value("${tts_server.http-version:HTTP_2}")
+    private HttpClient.Version httpVersion;
+
+    private HttpClient httpClient;
+    private URI uri;
+
+    public TtsClient() {}
+
+    public TtsClient(final String url, final long connectTimeoutMillis, final long requestTimeoutMillis, final HttpClient.Version httpVersion) {
+        this.url = url;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.httpVersion = httpVersion;
+        this.initialize();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        this.uri = URI.create(this.url);
+        this.httpClient = HttpClient.newBuilder()
+                .version(this.httpVersion)
+                .connectTimeout(Duration.ofMillis(this.connectTimeoutMillis))
+                .build();
+    }
+
+    // 声の設定はサーバーごとに決まっているので、キャッシュのキーには URL を使う
+    public String getUrl() {
+        return this.url;
+    }
+
+    /**
+     * text を合成し、応答ヘッダーが届いた時点で本文のストリームを返す。本文を最後まで待たないので、読みながら再生できる。
+     * ストリームは呼び出し側で閉じること。
+     */
+    public InputStream openStream(final String text) throws IOException, InterruptedException {
+        final var request = HttpRequest.newBuilder(this.uri)
+                .timeout(Duration.ofMillis(this.requestTimeoutMillis))
+                .header("Content-Type", "text/plain; charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofString(text, StandardCharsets.UTF_8))
+                .build();
+
+        final var response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("TTS server returned status " + response.statusCode());
+        }
+
+        logger.debug("TTS response started ({})", response.version());
+        return response.body();
+    }
+}
@@ -0,0 +1,235 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.metrics.PipelineMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.dv8tion.jda.api.audio.AudioReceiveHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 受信しながらエンコードする返答で、次のパケットが届くまでの間にフレームがなくても、話し始めたユーザーが返答を遮れることを確かめる。
+ */
+class AudioHandlerTest {
+    private static final String GUILD = "g0";
+    private static final String USER = "u0";
+    private static final AudioFormat REPLY_FORMAT = PcmConverter.GEMINI_OUTPUT_FORMAT;
+    private static final int FRAME_BYTES = SpeakerBuffer.bytesFor(AudioReceiveHandler.OUTPUT_FORMAT, 20);
+    private static final long TIMEOUT_MILLISECONDS = 10_000;
+
+    private Path directory;
+    private DataCheckScheduler scheduler;
+    private PipelineExecutors executors;
+    private AudioPlayerPool playerPool;
+    private OpusPacketStore packetStore;
+    private AudioQueueManager queueManager;
+    private StubSessionManager sessionManager;
+    private AudioProcessor audioProcessor;
+    private SharedAudioData sharedAudioData;
+    private AudioHandler handler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.playerPool = new AudioPlayerPool();
+        // Opus のネイティブライブラリが読み込めない環境ではエンコードできないので確かめない
+        assumeTrue(opusAvailable(this.playerPool), "Opus encoder is not available");
+
+        this.directory = Files.createTempDirectory("audio-handler-test");
+        this.scheduler = new DataCheckScheduler();
+        this.executors = new PipelineExecutors(1, 1);
+        this.packetStore = new OpusPacketStore(this.directory, 1 << 20);
+        this.queueManager = new AudioQueueManager(8, BoundedAudioQueue.Policy.DROP_OLDEST);
+        this.sessionManager = new StubSessionManager(true, (guildId, audio) -> null);
+        this.sharedAudioData = new SharedAudioData(PcmConverter.GEMINI_INPUT_FORMAT, this.scheduler.register(GUILD),
+                this.queueManager.newUtteranceQueue(GUILD));
+        final var metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        // 音声で返答するので、TTS は使わない
+        this.audioProcessor = new AudioProcessor(this.sessionManager, this.queueManager, null, null, metrics);
+        this.handler = new AudioHandler(this.audioProcessor, this.sharedAudioData, this.playerPool, GUILD, this.queueManager,
+                this.sessionManager, this.packetStore, this.executors, metrics);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (this.handler != null)
+            this.handler.close();
+        if (this.audioProcessor != null)
+            this.audioProcessor.shutdown();
+        if (this.scheduler != null)
+            this.scheduler.shutdown();
+        if (this.executors != null)
+            this.executors.shutdown();
+        if (this.packetStore != null)
+            this.packetStore.close();
+        this.playerPool.shutdown();
+        if (this.directory != null) {
+            try (var files = Files.walk(this.directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    void speechInterruptsStreamedTtsReplyBetweenChunks() throws Exception {
+        final var wav = wav(1000);
+        final var reply = new PipedOutputStream();
+        final var stream = new PipedInputStream(reply, wav.length);
+        // ヘッダーと最初の 200ms 分だけ届いた状態で再生を始める
+        final var sent = 44 + bytesFor(200);
+        reply.write(wav, 0, sent);
+        this.queueManager.enqueueDiscord(GUILD, ReplyAudio.of(stream));
+
+        assertTrue(this.pollPackets() > 0);
+        // 次のチャンクを受信するまでの間は送るフレームがない
+        this.assertNoFrames(5);
+
+        reply.write(wav, sent, bytesFor(200));
+        assertTrue(this.pollPackets() > 0);
+        this.assertNoFrames(5);
+
+        this.speak();
+        assertEquals(1, this.sessionManager.getCancelCount(GUILD), "reply was not interrupted");
+        assertFalse(this.handler.canProvide());
+
+        // 遮られた返答は残りを受信せずに閉じられる
+        final var closed = assertThrows(IOException.class, () -> {
+            final var deadline = System.currentTimeMillis() + TIMEOUT_MILLISECONDS;
+            while (System.currentTimeMillis() < deadline) {
+                reply.write(wav, 44, bytesFor(20));
+                Thread.sleep(20);
+            }
+        });
+        assertTrue(closed.getMessage().contains("closed"), closed.getMessage());
+    }
+
+    @Test
+    void speechInterruptsGeminiAudioBetweenChunks() {
+        final var pcm = Arrays.copyOfRange(wav(100), 44, 44 + bytesFor(100));
+        this.handler.onAudio(pcm);
+        assertTrue(this.pollPackets() > 0);
+        this.assertNoFrames(5);
+
+        // 返答の途中で次のチャンクが届く（ターンはまだ終わっていない）
+        this.handler.onAudio(pcm);
+        assertTrue(this.pollPackets() > 0);
+        this.assertNoFrames(5);
+
+        this.speak();
+        assertEquals(1, this.sessionManager.getCancelCount(GUILD), "reply was not interrupted");
+    }
+
+    @Test
+    void finishedReplyIsNotInterrupted() {
+        final var pcm = Arrays.copyOfRange(wav(100), 44, 44 + bytesFor(100));
+        this.handler.onAudio(pcm);
+        this.handler.onTurnComplete();
+        assertTrue(this.pollPackets() > 0);
+        // 最後のパケットを送り終えてからのフレームのない問い合わせで、再生の終わりとみなす
+        this.assertNoFrames(5);
+
+        this.speak();
+        assertEquals(0, this.sessionManager.getCancelCount(GUILD));
+    }
+
+    // パケットが届くまで待ち、送信スレッドと同じく 1 つずつ取り出す。取り出した数を返す
+    private int pollPackets() {
+        final var deadline = System.currentTimeMillis() + TIMEOUT_MILLISECONDS;
+        while (!this.handler.canProvide()) {
+            if (System.currentTimeMillis() > deadline)
+                fail("no packet was queued");
+            sleep(5);
+        }
+
+        // 届いたチャンクの残りをエンコードし終えるのを待ってから、まとめて取り出す
+        sleep(100);
+        var packets = 0;
+        do {
+            assertTrue(this.handler.provide20MsAudio().hasRemaining());
+            packets++;
+        } while (this.handler.canProvide());
+        return packets;
+    }
+
+    private void assertNoFrames(final int polls) {
+        for (int i = 0; i < polls; i++) {
+            assertFalse(this.handler.canProvide(), "poll " + i);
+            sleep(20);
+        }
+    }
+
+    // 発話と判定されるのは 2 フレーム目なので、3 フレーム渡す
+    private void speak() {
+        final var frame = tone();
+        for (int i = 0; i < 3; i++)
+            this.sharedAudioData.addAudioData(USER, frame);
+    }
+
+    private static boolean opusAvailable(final AudioPlayerPool playerPool) {
+        try {
+            new OpusReplyEncoder(REPLY_FORMAT, playerPool.getPlayerManager().getConfiguration(), packet -> {}).close();
+            return true;
+        } catch (final LinkageError e) {
+            return false;
+        }
+    }
+
+    private static int bytesFor(final long millis) {
+        return SpeakerBuffer.bytesFor(REPLY_FORMAT, millis);
+    }
+
+    // TTS サーバーの応答と同じ形式（24kHz モノラル）の、440Hz のサイン波の WAV
+    private static byte[] wav(final long millis) {
+        final var pcm = ByteBuffer.allocate(bytesFor(millis)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; pcm.hasRemaining(); i++)
+            pcm.putShort((short) Math.round(6000 * Math.sin(2 * Math.PI * 440 * i / REPLY_FORMAT.getFrameRate())));
+
+        final var wav = new ByteArrayOutputStream();
+        try {
+            AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm.array()), REPLY_FORMAT, pcm.capacity() / REPLY_FORMAT.getFrameSize()),
+                    AudioFileFormat.Type.WAVE, wav);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return wav.toByteArray();
+    }
+
+    // JDA の受信フォーマット（48kHz ステレオ、ビッグエンディアン）の 440Hz のサイン波 20ms 分
+    private static byte[] tone() {
+        final var format = AudioReceiveHandler.OUTPUT_FORMAT;
+        final var buffer = ByteBuffer.allocate(FRAME_BYTES).order(ByteOrder.BIG_ENDIAN);
+        final var frames = FRAME_BYTES / format.getFrameSize();
+        for (int i = 0; i < frames; i++) {
+            final var sample = (short) Math.round(6000 * Math.sin(2 * Math.PI * 440 * i / format.getFrameRate()));
+            for (int c = 0; c < format.getChannels(); c++)
+                buffer.putShort(sample);
+        }
+        return buffer.array();
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.mumeinosato.audio;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 一杯になったときの扱いを方針ごとに確かめる。どの方針でも、追加した要素は取り出されるか onDrop に渡されるかのどちらか 1 回だけになる。
+ */
+class BoundedAudioQueueTest {
+    private static final int PRODUCERS = 4;
+    private static final int ITEMS_PER_PRODUCER = 20000;
+
+    private final List<String> dropped = new ArrayList<>();
+
+    private BoundedAudioQueue<String> queue(final int capacity, final BoundedAudioQueue.Policy policy) {
+        // キーは "ユーザー:内容" のユーザー部分
+        return new BoundedAudioQueue<>(capacity, policy, value -> value.substring(0, value.indexOf(':')), this.dropped::add);
+    }
+
+    @Test
+    void dropOldestEvictsOldestWhenFull() {
+        final var queue = this.queue(3, BoundedAudioQueue.Policy.DROP_OLDEST);
+        for (int i = 1; i <= 5; i++)
+            assertTrue(queue.offer("u" + i + ":" + i));
+
+        assertEquals(List.of("u1:1", "u2:2"), this.dropped);
+        assertEquals(2L, queue.getDropped());
+        assertEquals(3, queue.size());
+        assertEquals("u3:3", queue.poll());
+        assertEquals("u4:4", queue.poll());
+        assertEquals("u5:5", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void dropOldestDoesNotCoalesceSameUser() {
+        final var queue = this.queue(4, BoundedAudioQueue.Policy.DROP_OLDEST);
+        queue.offer("u1:a");
+        queue.offer("u1:b");
+
+        assertEquals(2, queue.size());
+        assertEquals("u1:a", queue.poll());
+        assertEquals("u1:b", queue.poll());
+        assertTrue(this.dropped.isEmpty());
+    }
+
+    @Test
+    void rejectDropsNewestWhenFull() {
+        final var queue = this.queue(2, BoundedAudioQueue.Policy.REJECT);
+        assertTrue(queue.offer("u1:a"));
+        assertTrue(queue.offer("u2:b"));
+        assertFalse(queue.offer("u3:c"));
+
+        assertEquals(List.of("u3:c"), this.dropped);
+        assertEquals(1L, queue.getDropped());
+        assertEquals("u1:a", queue.poll());
+        assertEquals("u2:b", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void rejectReusesSlotsOfDiscardedItems() {
+        final var queue = this.queue(2, BoundedAudioQueue.Policy.REJECT);
+        queue.offer("u1:a");
+        queue.offer("u2:b");
+        assertEquals(1, queue.discardIf(value -> value.startsWith("u1")));
+
+        // 取り消した要素の場所は空いているので、一杯ではない
+        assertTrue(queue.offer("u3:c"));
+        assertEquals(0L, queue.getDropped());
+        assertEquals("u2:b", queue.poll());
+        assertEquals("u3:c", queue.poll());
+    }
+
+    @Test
+    void coalesceKeepsLatestPerUser() {
+        final var queue = this.queue(4, BoundedAudioQueue.Policy.COALESCE_PER_USER);
+        queue.offer("u1:a");
+        queue.offer("u2:a");
+        queue.offer("u1:b");
+
+        assertEquals(List.of("u1:a"), this.dropped);
+        assertEquals(1L, queue.getDropped());
+        assertEquals(2, queue.size());
+        assertEquals("u2:a", queue.poll());
+        assertEquals("u1:b", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void coalesceEvictsOldestWhenFull() {
+        final var queue = this.queue(2, BoundedAudioQueue.Policy.COALESCE_PER_USER);
+        queue.offer("u1:a");
+        queue.offer("u2:a");
+        queue.offer("u3:a");
+
+        assertEquals(List.of("u1:a"), this.dropped);
+        assertEquals("u2:a", queue.poll());
+        assertEquals("u3:a", queue.poll());
+
+        // 取り出した後の同じユーザーの要素は置き換えない
+        queue.offer("u2:b");
+        assertEquals(1, queue.size());
+        assertEquals(1L, queue.getDropped());
+    }
+
+    @Test
+    void discardIfRemovesMatchingWithoutCountingDrops() {
+        final var queue = this.queue(4, BoundedAudioQueue.Policy.DROP_OLDEST);
+        queue.offer("g1:a");
+        queue.offer("g2:a");
+        queue.offer("g1:b");
+
+        assertEquals(2, queue.discardIf(value -> value.startsWith("g1")));
+        assertEquals(List.of("g1:a", "g1:b"), this.dropped);
+        assertEquals(0L, queue.getDropped());
+        assertEquals(1, queue.size());
+        assertEquals("g2:a", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void clearHandsEveryItemToOnDrop() {
+        final var queue = this.queue(4, BoundedAudioQueue.Policy.DROP_OLDEST);
+        queue.offer("u1:a");
+        queue.offer("u2:a");
+
+        assertEquals(2, queue.clear());
+        assertEquals(List.of("u1:a", "u2:a"), this.dropped);
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void concurrentProducersWithDropOldest() throws Exception {
+        this.assertEachItemHandledOnce(BoundedAudioQueue.Policy.DROP_OLDEST);
+    }
+
+    @Test
+    void concurrentProducersWithCoalesce() throws Exception {
+        this.assertEachItemHandledOnce(BoundedAudioQueue.Policy.COALESCE_PER_USER);
+    }
+
+    @Test
+    void concurrentProducersWithReject() throws Exception {
+        this.assertEachItemHandledOnce(BoundedAudioQueue.Policy.REJECT);
+    }
+
+    // 追加側は一杯になると自分でも取り出す（DROP_OLDEST と COALESCE_PER_USER）ので、取り出し側と競合する
+    private void assertEachItemHandledOnce(final BoundedAudioQueue.Policy policy) throws Exception {
+        final Queue<String> drops = new ConcurrentLinkedQueue<>();
+        final var queue = new BoundedAudioQueue<String>(8, policy, value -> value.substring(0, value.indexOf(':')), drops::add);
+        final Queue<String> consumed = new ConcurrentLinkedQueue<>();
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        final var start = new CountDownLatch(1);
+        final var producing = new AtomicBoolean(true);
+
+        final var producers = new ArrayList<Thread>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final var producer = "p" + p;
+            producers.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < ITEMS_PER_PRODUCER; i++)
+                        queue.offer(producer + ":" + i);
+                } catch (final Throwable e) {
+                    errors.add(e);
+                }
+            }, "producer-" + p));
+        }
+        final var consumer = new Thread(() -> {
+            try {
+                start.await();
+                while (producing.get() || queue.size() > 0) {
+                    final var value = queue.poll();
+                    if (value != null)
+                        consumed.add(value);
+                }
+            } catch (final Throwable e) {
+                errors.add(e);
+            }
+        }, "consumer");
+
+        producers.forEach(Thread::start);
+        consumer.start();
+        start.countDown();
+        for (final var producer : producers)
+            producer.join();
+        producing.set(false);
+        consumer.join();
+
+        assertTrue(errors.isEmpty(), policy + " threw " + errors);
+        assertEquals(PRODUCERS * ITEMS_PER_PRODUCER, consumed.size() + drops.size(), policy + " items lost or duplicated");
+        assertEquals((long) drops.size(), queue.getDropped(), policy + " drop count");
+        assertEquals(0, queue.size(), policy + " depth");
+
+        // 取り出した要素は重複せず、追加側ごとに追加した順に並ぶ
+        final var last = new int[PRODUCERS];
+        Arrays.fill(last, -1);
+        for (final var value : consumed) {
+            final var producer = Integer.parseInt(value.substring(1, value.indexOf(':')));
+            final var index = Integer.parseInt(value.substring(value.indexOf(':') + 1));
+            assertTrue(index > last[producer], policy + " out of order: " + value);
+            last[producer] = index;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.mumeinosato.audio;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataCheckSchedulerTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final DataCheckScheduler scheduler = new DataCheckScheduler();
+
+    @AfterEach
+    void shutdown() {
+        this.scheduler.shutdown();
+    }
+
+    @Test
+    void checkIsRescheduledByItsResult() throws InterruptedException {
+        final var deadlines = this.scheduler.register("guild");
+        final var runs = new AtomicInteger();
+        final var done = new CountDownLatch(1);
+
+        deadlines.watch("user", 0, () -> {
+            if (runs.incrementAndGet() < 3)
+                return 1;
+            done.countDown();
+            return -1;
+        });
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    void laterDeadlineDoesNotReplaceEarlierOne() throws InterruptedException {
+        final var deadlines = this.scheduler.register("guild");
+        final var ran = new CountDownLatch(1);
+        final var which = new AtomicReference<String>();
+
+        deadlines.watch("user", 0, () -> {
+            which.set("early");
+            ran.countDown();
+            return -1;
+        });
+        deadlines.watch("user", 60_000, () -> {
+            which.set("late");
+            ran.countDown();
+            return -1;
+        });
+
+        assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("early", which.get());
+    }
+
+    @Test
+    void checkCanWatchItsOwnKey() throws InterruptedException {
+        final var deadlines = this.scheduler.register("guild");
+        final var error = new AtomicReference<Throwable>();
+        final var watched = new CountDownLatch(1);
+
+        // 判定の中から同じキーを予約し直しても、マップの更新中に更新したことにはならない
+        deadlines.watch("user", 0, () -> {
+            try {
+                deadlines.watch("user", 0, () -> {
+                    watched.countDown();
+                    return -1;
+                });
+            } catch (final Throwable e) {
+                error.set(e);
+            }
+            return -1;
+        });
+
+        assertTrue(watched.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(error.get());
+    }
+
+    @Test
+    void watchDoesNotWaitForRunningCheck() throws InterruptedException {
+        final var deadlines = this.scheduler.register("guild");
+        final var started = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+
+        deadlines.watch("user", 0, () -> {
+            started.countDown();
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return -1;
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // 受信スレッドからの予約は、判定が終わるのを待たずに戻る
+        final var receiver = new Thread(() -> deadlines.watch("user", 60_000, () -> -1));
+        receiver.start();
+        receiver.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        final var blocked = receiver.isAlive();
+        release.countDown();
+
+        assertFalse(blocked, "watch blocked while the check was running");
+    }
+
+    @Test
+    void watchDuringCheckIsNotLost() throws InterruptedException {
+        final var deadlines = this.scheduler.register("guild");
+        final var started = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final var rewatched = new CountDownLatch(1);
+
+        // 判定が「もう予約しない」と返しても、判定中に届いた音声の予約は残る
+        deadlines.watch("user", 0, () -> {
+            started.countDown();
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return -1;
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        deadlines.watch("user", 0, () -> {
+            rewatched.countDown();
+            return -1;
+        });
+        release.countDown();
+
+        assertTrue(rewatched.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancelledGuildDoesNotRun() throws InterruptedException {
+        final var deadlines = this.scheduler.register("guild");
+        final var ran = new AtomicInteger();
+
+        deadlines.watch("user", 100, () -> {
+            ran.incrementAndGet();
+            return -1;
+        });
+        this.scheduler.cancelGuild("guild");
+        deadlines.watch("user", 0, () -> {
+            ran.incrementAndGet();
+            return -1;
+        });
+
+        Thread.sleep(300);
+        assertEquals(0, ran.get());
+    }
+}
@@ -0,0 +1,161 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.metrics.PipelineMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Gemini への接続に時間がかかるギルドがあっても、他のギルドの参加と退出が待たされないことを確かめる。
+ */
+class GuildSessionRegistryTest {
+    private static final String SLOW_GUILD = "slow";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final CountDownLatch connecting = new CountDownLatch(1);
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final Set<String> failingGuilds = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger createdSessions = new AtomicInteger();
+
+    private Path directory;
+    private DataCheckScheduler scheduler;
+    private PipelineExecutors executors;
+    private AudioPlayerPool playerPool;
+    private OpusPacketStore packetStore;
+    private GuildSessionRegistry registry;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("guild-session-registry-test");
+        this.scheduler = new DataCheckScheduler();
+        this.executors = new PipelineExecutors(1, 1);
+        this.playerPool = new AudioPlayerPool();
+        this.packetStore = new OpusPacketStore(this.directory, 1 << 20);
+
+        // SLOW_GUILD はプールに接続済みのセッションがなく、接続し終えるまで待つ
+        final var sessionManager = new StubSessionManager(false, (guildId, audio) -> null) {
+            @Override
+            public boolean createSession(final String guildId) {
+                GuildSessionRegistryTest.this.createdSessions.incrementAndGet();
+                if (guildId.equals(SLOW_GUILD)) {
+                    GuildSessionRegistryTest.this.connecting.countDown();
+                    await(GuildSessionRegistryTest.this.connected);
+                }
+                return !GuildSessionRegistryTest.this.failingGuilds.contains(guildId) && super.createSession(guildId);
+            }
+        };
+        this.registry = new GuildSessionRegistry(sessionManager, new AudioProcessor(), new AudioQueueManager(8, BoundedAudioQueue.Policy.DROP_OLDEST),
+                this.scheduler, this.packetStore, this.executors, this.playerPool, new PipelineMetrics(new SimpleMeterRegistry()));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        this.connected.countDown();
+        this.registry.closeAll();
+        this.scheduler.shutdown();
+        this.executors.shutdown();
+        this.packetStore.close();
+        this.playerPool.shutdown();
+        try (var files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    void slowConnectDoesNotBlockOtherGuilds() throws InterruptedException {
+        final var slow = new AtomicReference<GuildSessionRegistry.GuildVoiceSession>();
+        final var opener = new Thread(() -> slow.set(this.registry.open(SLOW_GUILD)), "open-" + SLOW_GUILD);
+        opener.start();
+        assertTrue(this.connecting.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // 接続を待っている間も、他のギルドは参加して退出できる
+        final var opened = new AtomicReference<GuildSessionRegistry.GuildVoiceSession>();
+        final var other = new Thread(() -> {
+            opened.set(this.registry.open("g1"));
+            this.registry.close("g1");
+        }, "open-g1");
+        other.start();
+        other.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        final var blocked = other.isAlive();
+        assertFalse(blocked, "another guild waited for the slow connect");
+        assertNotNull(opened.get());
+        assertFalse(this.registry.contains("g1"));
+
+        // 作り終えるまでは参加中として扱わない
+        assertFalse(this.registry.contains(SLOW_GUILD));
+        assertEquals(0, this.registry.size());
+
+        this.connected.countDown();
+        opener.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertNotNull(slow.get());
+        assertTrue(this.registry.contains(SLOW_GUILD));
+    }
+
+    @Test
+    void concurrentOpenOfSameGuildCreatesOneSession() throws InterruptedException {
+        final var first = new AtomicReference<GuildSessionRegistry.GuildVoiceSession>();
+        final var second = new AtomicReference<GuildSessionRegistry.GuildVoiceSession>();
+        final var opener = new Thread(() -> first.set(this.registry.open(SLOW_GUILD)));
+        opener.start();
+        assertTrue(this.connecting.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // 同じギルドの 2 回目の参加は、1 回目が作り終えるのを待ってそのセッションを使う
+        final var again = new Thread(() -> second.set(this.registry.open(SLOW_GUILD)));
+        again.start();
+        this.connected.countDown();
+        opener.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        again.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertNotNull(first.get());
+        assertSame(first.get(), second.get());
+        assertEquals(1, this.createdSessions.get());
+        assertEquals(1, this.playerPool.getActivePlayers());
+    }
+
+    @Test
+    void failedConnectRegistersNothing() {
+        this.failingGuilds.add("g1");
+
+        assertNull(this.registry.open("g1"));
+        assertFalse(this.registry.contains("g1"));
+        assertEquals(0, this.playerPool.getActivePlayers());
+    }
+
+    @Test
+    void closeReturnsPlayerAndAllowsRejoin() {
+        final var session = this.registry.open("g1");
+        assertNotNull(session);
+        assertEquals(1, this.playerPool.getActivePlayers());
+
+        this.registry.close("g1");
+        assertFalse(this.registry.contains("g1"));
+        assertEquals(0, this.playerPool.getActivePlayers());
+
+        final var rejoined = this.registry.open("g1");
+        assertNotNull(rejoined);
+        assertNotSame(session, rejoined);
+        assertEquals(2, this.createdSessions.get());
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.metrics.PipelineMetrics;
+import com.mumeinosato.tts.TtsCache;
+import com.mumeinosato.tts.TtsClient;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.dv8tion.jda.api.audio.AudioReceiveHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 多数のギルドが同時に話しても、発話や返答が他のギルドに混ざらず、遅いギルドに引きずられないことを確かめる。
+ * 本番と同じく {@link GuildSessionRegistry} でギルドごとの {@link AudioHandler} を作り、スケジューラーとスレッドプールは全ギルドで共有する。
+ * Gemini だけは {@link StubSessionManager} に置き換え、発話の音量から話したユーザーを判別して返答する。
+ */
+class MultiGuildLoadTest {
+    private static final int GUILDS = 32;
+    private static final int USERS = 3;
+    private static final int SPEECH_FRAMES = 30;
+    private static final int FRAME_MILLISECONDS = 20;
+    private static final int FRAME_BYTES = SpeakerBuffer.bytesFor(AudioReceiveHandler.OUTPUT_FORMAT, FRAME_MILLISECONDS);
+    private static final int EXPECTED_BYTES = SpeakerBuffer.bytesFor(PcmConverter.GEMINI_INPUT_FORMAT, SPEECH_FRAMES * FRAME_MILLISECONDS);
+    // 返答 1 件あたりのパケット数
+    private static final int PACKETS = 3;
+    // このギルドの返答だけはキャッシュになく、TTS サーバーが本文を返し終えない（再生スレッドを 1 本使い続ける）
+    private static final String SLOW_GUILD = "g0";
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private Path directory;
+    private HttpServer server;
+    private final CountDownLatch serverReleased = new CountDownLatch(1);
+    private final Queue<String> ttsRequests = new ConcurrentLinkedQueue<>();
+    private final Map<String, Queue<Utterance>> utterances = new ConcurrentHashMap<>();
+
+    private DataCheckScheduler scheduler;
+    private PipelineExecutors executors;
+    private AudioQueueManager queueManager;
+    private AudioPlayerPool playerPool;
+    private OpusPacketStore packetStore;
+    private TtsClient ttsClient;
+    private TtsCache ttsCache;
+    private AudioProcessor audioProcessor;
+    private GuildSessionRegistry registry;
+
+    private record Utterance(String userId, int bytes, double rms) {}
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("multi-guild-load-test");
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.createContext("/tts", exchange -> {
+            this.ttsRequests.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            // 応答ヘッダーと WAV の先頭だけを返して止まる
+            exchange.sendResponseHeaders(200, 0);
+            try (var body = exchange.getResponseBody()) {
+                body.write(new byte[]{'R', 'I', 'F', 'F'});
+                body.flush();
+                this.serverReleased.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        this.server.start();
+
+        this.scheduler = new DataCheckScheduler();
+        // 遅いギルドが 1 本使っていても、残りの 1 本で他のギルドの再生が進む
+        this.executors = new PipelineExecutors(2, 2);
+        this.queueManager = new AudioQueueManager(GUILDS * USERS, BoundedAudioQueue.Policy.REJECT);
+        this.playerPool = new AudioPlayerPool();
+        this.playerPool.initialize();
+        this.packetStore = new OpusPacketStore(this.directory.resolve("opus"), 1 << 20);
+        this.ttsClient = new TtsClient("http://localhost:" + this.server.getAddress().getPort() + "/tts", 2000, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS),
+                HttpClient.Version.HTTP_1_1);
+        this.ttsCache = new TtsCache(1 << 20, 1 << 20, 1 << 16, this.directory.resolve("tts"));
+
+        final var sessionManager = new StubSessionManager(false, this::reply);
+        final var metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        this.audioProcessor = new AudioProcessor(sessionManager, this.queueManager, this.ttsClient, this.ttsCache, metrics);
+        this.registry = new GuildSessionRegistry(sessionManager, this.audioProcessor, this.queueManager, this.scheduler,
+                this.packetStore, this.executors, this.playerPool, metrics);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        // 遅いギルドの返答は受信途中のまま、再生スレッドを止めてから TTS サーバーを止める
+        this.registry.closeAll();
+        this.audioProcessor.shutdown();
+        this.scheduler.shutdown();
+        this.executors.shutdown();
+        this.serverReleased.countDown();
+        this.packetStore.close();
+        this.ttsCache.shutdown();
+        this.playerPool.shutdown();
+        this.server.stop(0);
+        try (var files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    void concurrentGuildsDoNotInterfere() throws Exception {
+        final Map<String, Queue<String>> packets = new ConcurrentHashMap<>();
+        final var handlers = new ArrayList<AudioHandler>();
+        final var sessions = new ArrayList<GuildSessionRegistry.GuildVoiceSession>();
+        for (int g = 0; g < GUILDS; g++) {
+            final var guildId = "g" + g;
+            final var session = this.registry.open(guildId);
+            assertNotNull(session, guildId);
+            sessions.add(session);
+            handlers.add(session.getHandler());
+            this.utterances.put(guildId, new ConcurrentLinkedQueue<>());
+            packets.put(guildId, new ConcurrentLinkedQueue<>());
+
+            // 遅いギルド以外の返答は、合成済みの音声とエンコード済みのパケットを用意しておく
+            if (guildId.equals(SLOW_GUILD))
+                continue;
+            for (int u = 0; u < USERS; u++) {
+                final var text = guildId + "-u" + u;
+                final var audio = ("WAVE " + text).getBytes(StandardCharsets.UTF_8);
+                this.ttsCache.put(this.ttsCache.key(text, this.ttsClient.getUrl()), audio);
+                final var encoded = new ArrayList<byte[]>();
+                for (int i = 0; i < PACKETS; i++)
+                    encoded.add((text + "#" + i).getBytes(StandardCharsets.UTF_8));
+                this.packetStore.put(OpusPacketStore.hash(ByteBuffer.wrap(audio)), encoded);
+            }
+        }
+
+        // JDA の送信スレッドと同じく、全ギルドのハンドラーからパケットを取り出す
+        final var played = new CountDownLatch((GUILDS - 1) * USERS);
+        final var sender = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (int g = 0; g < GUILDS; g++) {
+                    final var handler = handlers.get(g);
+                    while (handler.canProvide()) {
+                        final var packet = handler.provide20MsAudio();
+                        final var bytes = new byte[packet.remaining()];
+                        packet.get(bytes);
+                        final var text = new String(bytes, StandardCharsets.UTF_8);
+                        packets.get("g" + g).add(text);
+                        if (text.endsWith("#" + (PACKETS - 1)))
+                            played.countDown();
+                    }
+                }
+                sleep(2);
+            }
+        }, "sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        try {
+            // 先に遅いギルドが話し、その返答の受信で再生スレッドが 1 本ふさがってから他のギルドが話す
+            final var slowFeeder = feed(sessions.get(0), 0);
+            slowFeeder.join();
+            final var deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+            while (this.ttsRequests.isEmpty() && System.currentTimeMillis() < deadline)
+                sleep(10);
+            assertFalse(this.ttsRequests.isEmpty(), SLOW_GUILD + " did not request TTS");
+
+            final var feeders = new ArrayList<Thread>();
+            for (int g = 1; g < GUILDS; g++)
+                feeders.add(feed(sessions.get(g), g));
+            for (final var feeder : feeders)
+                feeder.join();
+
+            // 遅いギルドの返答が止まったままでも、他のギルドの返答はすべて再生される
+            assertTrue(played.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "replies of other guilds waited for " + SLOW_GUILD);
+            assertTrue(packets.get(SLOW_GUILD).isEmpty(), SLOW_GUILD + " played " + packets.get(SLOW_GUILD));
+        } finally {
+            sender.interrupt();
+        }
+
+        // 容量は十分にあるので、どの段でも捨てられていない
+        for (final var stage : AudioQueueManager.Stage.values())
+            assertEquals(0L, this.queueManager.getDropped(stage), stage + " drops");
+
+        for (int g = 0; g < GUILDS; g++) {
+            final var guildId = "g" + g;
+            final var received = this.utterances.get(guildId);
+            assertEquals(USERS, received.size(), guildId + " utterance count");
+
+            final var users = new ArrayList<String>();
+            for (final var utterance : received) {
+                // 自分のギルドのユーザーの発話だけが、1 人 1 回ずつ届く（音量が他のユーザーと一致しなければ混ざっている）
+                assertTrue(utterance.userId().startsWith(guildId + "-u"), guildId + " received audio at level " + utterance.rms());
+                assertFalse(users.contains(utterance.userId()), "duplicate utterance " + utterance.userId());
+                users.add(utterance.userId());
+                assertEquals(EXPECTED_BYTES, utterance.bytes(), EXPECTED_BYTES * 0.15, utterance.userId() + " length");
+            }
+
+            if (guildId.equals(SLOW_GUILD))
+                continue;
+            // 自分のギルドの返答のパケットだけが、返答ごとに順に 1 回ずつ送られる
+            final var sent = new ArrayList<>(packets.get(guildId));
+            assertEquals(USERS * PACKETS, sent.size(), guildId + " packets " + sent);
+            for (int i = 0; i < sent.size(); i += PACKETS) {
+                final var reply = sent.get(i).substring(0, sent.get(i).indexOf('#'));
+                assertTrue(reply.startsWith(guildId + "-u"), guildId + " played " + reply);
+                for (int p = 0; p < PACKETS; p++)
+                    assertEquals(reply + "#" + p, sent.get(i + p));
+            }
+        }
+    }
+
+    // JDA と同じく、ギルドごとの受信スレッドが 20ms ごとに全員分のフレームを渡す
+    private static Thread feed(final GuildSessionRegistry.GuildVoiceSession session, final int guild) {
+        final var frames = new byte[USERS][];
+        for (int u = 0; u < USERS; u++)
+            frames[u] = tone(amplitude(guild, u));
+        final var feeder = new Thread(() -> {
+            for (int i = 0; i < SPEECH_FRAMES; i++) {
+                for (int u = 0; u < USERS; u++)
+                    session.getSharedAudioData().addAudioData(session.getGuildId() + "-u" + u, frames[u]);
+                sleep(FRAME_MILLISECONDS);
+            }
+        }, "feeder-" + session.getGuildId());
+        feeder.start();
+        return feeder;
+    }
+
+    // 発話の音量から話したユーザーを判別し、そのユーザー宛ての返答の文を返す
+    private String reply(final String guildId, final byte[] audio) {
+        final var g = Integer.parseInt(guildId.substring(1));
+        final var level = rms(audio);
+        var userId = "unknown";
+        for (int u = 0; u < USERS; u++) {
+            final var expected = amplitude(g, u) / Math.sqrt(2);
+            if (Math.abs(level - expected) < expected * 0.05)
+                userId = guildId + "-u" + u;
+        }
+        this.utterances.get(guildId).add(new Utterance(userId, audio.length, level));
+        return userId;
+    }
+
+    // ユーザーごと、ギルドごとに音量を変えて、混ざった場合に気付けるようにする
+    private static int amplitude(final int guild, final int user) {
+        return 1500 * (user + 1) + 300 * (guild % 4);
+    }
+
+    // JDA の受信フォーマット（48kHz ステレオ、ビッグエンディアン）の 440Hz のサイン波 20ms 分
+    private static byte[] tone(final int amplitude) {
+        final var format = AudioReceiveHandler.OUTPUT_FORMAT;
+        final var buffer = ByteBuffer.allocate(FRAME_BYTES).order(ByteOrder.BIG_ENDIAN);
+        final var frames = FRAME_BYTES / format.getFrameSize();
+        for (int i = 0; i < frames; i++) {
+            final var sample = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 440 * i / format.getFrameRate()));
+            for (int c = 0; c < format.getChannels(); c++)
+                buffer.putShort(sample);
+        }
+        return buffer.array();
+    }
+
+    // 16kHz モノラル（リトルエンディアン）の発話の実効値。先頭の立ち上がりは除く
+    private static double rms(final byte[] audio) {
+        final var samples = ByteBuffer.wrap(audio).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        final var skip = Math.min(samples.remaining(), 320);
+        var sum = 0.0;
+        for (int i = skip; i < samples.limit(); i++)
+            sum += (double) samples.get(i) * samples.get(i);
+        return Math.sqrt(sum / Math.max(1, samples.limit() - skip));
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.mumeinosato.audio;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpusPacketStoreTest {
+    private Path directory;
+    private OpusPacketStore store;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        this.directory = Files.createTempDirectory("opus-store-test");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        if (this.store != null)
+            this.store.close();
+        try (var files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private OpusPacketStore store(final long maxBytes) {
+        if (this.store != null)
+            this.store.close();
+        this.store = new OpusPacketStore(this.directory, maxBytes);
+        return this.store;
+    }
+
+    @Test
+    void playReturnsPacketsInOrder() {
+        final var store = this.store(1 << 20);
+        final var packets = List.of(packet(1, 3), packet(2, 1275), packet(3, 160));
+        store.put("a", packets);
+
+        assertTrue(store.contains("a"));
+        assertPackets(packets, play(store, "a"));
+        assertFalse(store.play("b", packet -> fail("unexpected packet")));
+    }
+
+    @Test
+    void packetsAreFramedWithUnsignedTwoByteLength() throws IOException {
+        final var store = this.store(1 << 20);
+        // 32767 を超える長さも符号なしで読み戻せる
+        final var packets = List.of(packet(1, 5), packet(2, 40000), packet(3, 0xffff));
+        store.put("a", packets);
+
+        assertPackets(packets, play(store, "a"));
+
+        final var file = ByteBuffer.wrap(Files.readAllBytes(this.directory.resolve("packets.bin")));
+        assertEquals(3 * 2 + 5 + 40000 + 0xffff, file.remaining());
+        assertEquals(5, file.getShort(0) & 0xffff);
+        assertEquals(40000, file.getShort(2 + 5) & 0xffff);
+        assertEquals(0xffff, file.getShort(2 + 5 + 2 + 40000) & 0xffff);
+    }
+
+    @Test
+    void packetLongerThanLengthFieldIsNotStored() {
+        final var store = this.store(1 << 20);
+        store.put("a", List.of(packet(1, 0x10000)));
+
+        assertFalse(store.contains("a"));
+    }
+
+    @Test
+    void sameKeyIsStoredOnce() throws IOException {
+        final var store = this.store(1 << 20);
+        store.put("a", List.of(packet(1, 100)));
+        store.put("a", List.of(packet(2, 100)));
+
+        assertArrayEquals(packet(1, 100), play(store, "a").get(0));
+        assertEquals(102, Files.size(this.directory.resolve("packets.bin")));
+    }
+
+    @Test
+    void indexIsRebuiltAfterRestart() {
+        final var store = this.store(1 << 20);
+        final var a = List.of(packet(1, 100), packet(2, 200));
+        final var b = List.of(packet(3, 300));
+        store.put("a", a);
+        store.put("b", b);
+
+        final var restarted = this.store(1 << 20);
+        assertPackets(a, play(restarted, "a"));
+        assertPackets(b, play(restarted, "b"));
+
+        // 再起動後の追記も前の分の後ろに続く
+        final var c = List.of(packet(4, 50));
+        restarted.put("c", c);
+        assertPackets(a, play(this.store(1 << 20), "a"));
+        assertPackets(c, play(this.store, "c"));
+    }
+
+    @Test
+    void brokenIndexLinesAreSkipped() throws IOException {
+        final var store = this.store(1 << 20);
+        store.put("a", List.of(packet(1, 100)));
+        store.close();
+
+        // 壊れた行と、パケットファイルの範囲を超える行（パケットを書き終える前に落ちた場合）は使わない
+        Files.writeString(this.directory.resolve("packets.idx"), "broken\nb x 10\nc 0 100000\n",
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        final var restarted = this.store(1 << 20);
+        assertTrue(restarted.contains("a"));
+        assertFalse(restarted.contains("b"));
+        assertFalse(restarted.contains("c"));
+    }
+
+    @Test
+    void storeStartsOverWhenFull() throws IOException {
+        // 1 件 602 バイトなので 2 件目で上限を超える
+        final var store = this.store(1000);
+        store.put("a", List.of(packet(1, 600)));
+        store.put("b", List.of(packet(2, 600)));
+
+        assertFalse(store.contains("a"));
+        assertArrayEquals(packet(2, 600), play(store, "b").get(0));
+        assertEquals(602, Files.size(this.directory.resolve("packets.bin")));
+
+        // インデックスも空にしてから追記しているので、再起動後も b だけが残る
+        final var restarted = this.store(1000);
+        assertFalse(restarted.contains("a"));
+        assertArrayEquals(packet(2, 600), play(restarted, "b").get(0));
+    }
+
+    @Test
+    void replyLargerThanStoreIsNotStoredAndKeepsOthers() throws IOException {
+        final var store = this.store(1000);
+        store.put("a", List.of(packet(1, 400)));
+        store.put("big", List.of(packet(2, 600), packet(3, 600)));
+
+        assertFalse(store.contains("big"));
+        assertTrue(store.contains("a"));
+        assertEquals(402, Files.size(this.directory.resolve("packets.bin")));
+    }
+
+    @Test
+    void hashDependsOnContentAndKeepsPosition() {
+        final var audio = ByteBuffer.wrap(packet(1, 1000));
+        audio.position(10);
+
+        final var hash = OpusPacketStore.hash(audio);
+        assertEquals(10, audio.position());
+        assertEquals(hash, OpusPacketStore.hash(ByteBuffer.wrap(packet(1, 1000), 10, 990)));
+        assertNotEquals(hash, OpusPacketStore.hash(ByteBuffer.wrap(packet(2, 1000), 10, 990)));
+    }
+
+    private static void assertPackets(final List<byte[]> expected, final List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertArrayEquals(expected.get(i), actual.get(i), "packet " + i);
+    }
+
+    private static List<byte[]> play(final OpusPacketStore store, final String key) {
+        final var packets = new ArrayList<byte[]>();
+        assertTrue(store.play(key, packet -> {
+            final var bytes = new byte[packet.remaining()];
+            packet.get(bytes);
+            packets.add(bytes);
+        }));
+        return packets;
+    }
+
+    private static byte[] packet(final int seed, final int length) {
+        final var packet = new byte[length];
+        for (int i = 0; i < length; i++)
+            packet[i] = (byte) (seed * 31 + i);
+        return packet;
+    }
+}
@@ -0,0 +1,111 @@
+package com.mumeinosato.audio;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ffmpeg の代わりに使うリサンプラーの品質を確かめる。通過域の音は保たれ、変換後のナイキスト周波数を超える音は除かれる。
+ */
+class PcmResamplerTest {
+    private static final int FRAME_SAMPLES = 960;
+    // フィルタの遅延と立ち上がりを除くため、先頭はこの分だけ測らない
+    private static final int SETTLE_SAMPLES = 1000;
+
+    @Test
+    void outputLengthFollowsRateRatio() {
+        assertEquals(16000, totalOutput(new PcmResampler(48000, 16000), 48000), 1);
+        assertEquals(24000, totalOutput(new PcmResampler(16000, 24000), 16000), 1);
+        assertEquals(48000, totalOutput(new PcmResampler(24000, 48000), 24000), 1);
+    }
+
+    @Test
+    void frameOutputFitsMaxOutputLength() {
+        final var resampler = new PcmResampler(48000, 16000);
+        final var output = new float[resampler.maxOutputLength(FRAME_SAMPLES)];
+        for (int i = 0; i < 10; i++)
+            assertTrue(resampler.process(tone(1000, 48000, FRAME_SAMPLES), FRAME_SAMPLES, output) <= output.length);
+    }
+
+    @Test
+    void passbandToneIsKept() {
+        final var output = resampleOneShot(tone(1000, 48000, 48000), 48000, 16000);
+        final var gainDb = 20 * Math.log10(rms(output, SETTLE_SAMPLES) / rms(tone(1000, 16000, 16000), 0));
+        assertEquals(0.0, gainDb, 0.1, "1 kHz gain " + gainDb + " dB");
+    }
+
+    @Test
+    void toneAboveNyquistIsRejected() {
+        final var output = resampleOneShot(tone(10000, 48000, 48000), 48000, 16000);
+        final var gainDb = 20 * Math.log10(rms(output, SETTLE_SAMPLES) / rms(tone(10000, 48000, 48000), 0));
+        assertTrue(gainDb < -60, "10 kHz gain " + gainDb + " dB");
+    }
+
+    @Test
+    void frameByFrameMatchesOneShot() {
+        final var input = tone(1000, 48000, 48000);
+        for (int i = 0; i < input.length; i++)
+            input[i] += (float) (0.1 * Math.sin(2 * Math.PI * 7000 * i / 48000.0));
+
+        final var oneShot = resampleOneShot(input, 48000, 16000);
+
+        final var resampler = new PcmResampler(48000, 16000);
+        final var frames = new float[oneShot.length + 1];
+        final var output = new float[resampler.maxOutputLength(FRAME_SAMPLES)];
+        var produced = 0;
+        for (int offset = 0; offset < input.length; offset += FRAME_SAMPLES) {
+            final var frame = Arrays.copyOfRange(input, offset, offset + FRAME_SAMPLES);
+            final var count = resampler.process(frame, FRAME_SAMPLES, output);
+            System.arraycopy(output, 0, frames, produced, count);
+            produced += count;
+        }
+
+        assertEquals(oneShot.length, produced);
+        for (int i = 0; i < produced; i++)
+            assertEquals(oneShot[i], frames[i], 1e-6, "sample " + i);
+    }
+
+    @Test
+    void resetClearsHistory() {
+        final var resampler = new PcmResampler(48000, 16000);
+        final var output = new float[resampler.maxOutputLength(FRAME_SAMPLES)];
+        resampler.process(tone(1000, 48000, FRAME_SAMPLES), FRAME_SAMPLES, output);
+        resampler.reset();
+
+        // 前の音が残っていなければ、無音からは無音だけが出る
+        final var count = resampler.process(new float[FRAME_SAMPLES], FRAME_SAMPLES, output);
+        for (int i = 0; i < count; i++)
+            assertEquals(0.0, output[i], 0.0, "sample " + i);
+    }
+
+    private static float[] resampleOneShot(final float[] input, final int inputRate, final int outputRate) {
+        final var resampler = new PcmResampler(inputRate, outputRate);
+        final var output = new float[resampler.maxOutputLength(input.length)];
+        return Arrays.copyOf(output, resampler.process(input, input.length, output));
+    }
+
+    private static int totalOutput(final PcmResampler resampler, final int inputSamples) {
+        final var input = new float[FRAME_SAMPLES];
+        final var output = new float[resampler.maxOutputLength(FRAME_SAMPLES)];
+        var total = 0;
+        for (int offset = 0; offset < inputSamples; offset += FRAME_SAMPLES)
+            total += resampler.process(input, Math.min(FRAME_SAMPLES, inputSamples - offset), output);
+        return total;
+    }
+
+    private static float[] tone(final double frequency, final int sampleRate, final int samples) {
+        final var tone = new float[samples];
+        for (int i = 0; i < samples; i++)
+            tone[i] = (float) (0.5 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        return tone;
+    }
+
+    private static double rms(final float[] samples, final int skip) {
+        var sum = 0.0;
+        for (int i = skip; i < samples.length; i++)
+            sum += (double) samples[i] * samples[i];
+        return Math.sqrt(sum / Math.max(1, samples.length - skip));
+    }
+}
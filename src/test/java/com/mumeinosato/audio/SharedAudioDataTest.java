@@ -0,0 +1,90 @@
+package com.mumeinosato.audio;
+
+import net.dv8tion.jda.api.audio.AudioReceiveHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 話し終わりの判定（バッファを閉じる側）と受信スレッドの書き込みが重なっても、発話が失われないことを確かめる。
+ */
+class SharedAudioDataTest {
+    private static final String USER = "u0";
+    private static final int FRAME_BYTES = SpeakerBuffer.bytesFor(AudioReceiveHandler.OUTPUT_FORMAT, 20);
+
+    private DataCheckScheduler scheduler;
+    private SharedAudioData sharedAudioData;
+
+    @BeforeEach
+    void setUp() {
+        this.scheduler = new DataCheckScheduler();
+        this.sharedAudioData = new SharedAudioData(PcmConverter.GEMINI_INPUT_FORMAT, this.scheduler.register("g0"),
+                new BoundedAudioQueue<>(4, BoundedAudioQueue.Policy.REJECT, null, SharedAudioData.AudioData::release));
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.scheduler.shutdown();
+    }
+
+    @Test
+    void utteranceSealedWhileReceiverReplacesBufferIsQueued() {
+        final var frame = tone();
+        for (int i = 0; i < 10; i++)
+            this.sharedAudioData.addAudioData(USER, frame);
+        final var sealed = this.sharedAudioData.getAccumulatedDataMap().get(USER);
+        assertTrue(sealed.hasSpeech());
+
+        // 判定側がバッファを閉じた直後に受信スレッドが書き込み、新しいバッファに置き換える
+        assertTrue(sealed.seal());
+        this.sharedAudioData.addAudioData(USER, frame);
+        final var replacement = this.sharedAudioData.getAccumulatedDataMap().get(USER);
+        assertNotSame(sealed, replacement);
+
+        // マップからはすでに外れているが、閉じた側が発話として渡す
+        this.sharedAudioData.closeBuffer(USER, sealed);
+        final var audioData = this.sharedAudioData.takeAudioData();
+        assertNotNull(audioData, "sealed utterance was lost");
+        assertEquals(USER, audioData.getId());
+        assertTrue(audioData.size() > 0);
+        audioData.release();
+
+        // 新しいバッファはそのまま書き込み中として残る
+        assertSame(replacement, this.sharedAudioData.getAccumulatedDataMap().get(USER));
+        assertNull(this.sharedAudioData.takeAudioData());
+    }
+
+    @Test
+    void sealedBufferStillInMapIsRemovedAndQueued() {
+        final var frame = tone();
+        for (int i = 0; i < 10; i++)
+            this.sharedAudioData.addAudioData(USER, frame);
+        final var buffer = this.sharedAudioData.getAccumulatedDataMap().get(USER);
+
+        assertTrue(buffer.seal());
+        this.sharedAudioData.closeBuffer(USER, buffer);
+
+        assertNull(this.sharedAudioData.getAccumulatedDataMap().get(USER));
+        final var audioData = this.sharedAudioData.takeAudioData();
+        assertNotNull(audioData);
+        audioData.release();
+    }
+
+    // JDA の受信フォーマット（48kHz ステレオ、ビッグエンディアン）の 440Hz のサイン波 20ms 分
+    private static byte[] tone() {
+        final var format = AudioReceiveHandler.OUTPUT_FORMAT;
+        final var buffer = ByteBuffer.allocate(FRAME_BYTES).order(ByteOrder.BIG_ENDIAN);
+        final var frames = FRAME_BYTES / format.getFrameSize();
+        for (int i = 0; i < frames; i++) {
+            final var sample = (short) Math.round(6000 * Math.sin(2 * Math.PI * 440 * i / format.getFrameRate()));
+            for (int c = 0; c < format.getChannels(); c++)
+                buffer.putShort(sample);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,84 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.gemini.SegmentListener;
+import com.mumeinosato.gemini.SessionManager;
+import com.mumeinosato.metrics.UtteranceTrace;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Gemini に接続しない SessionManager。送られた発話には replies が返す文を、その場で 1 文の返答として渡す。
+ */
+class StubSessionManager extends SessionManager {
+    private final boolean audioResponse;
+    // ギルド ID と 16kHz モノラルの発話から返答の文を決める。null なら返答しない
+    private final BiFunction<String, byte[], String> replies;
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicInteger> cancelledTurns = new ConcurrentHashMap<>();
+    private volatile SegmentListener segmentListener;
+
+    StubSessionManager(final boolean audioResponse, final BiFunction<String, byte[], String> replies) {
+        this.audioResponse = audioResponse;
+        this.replies = replies;
+    }
+
+    @Override
+    public boolean createSession(final String guildId) {
+        this.sessions.add(guildId);
+        return true;
+    }
+
+    @Override
+    public void removeSession(final String guildId) {
+        this.sessions.remove(guildId);
+    }
+
+    @Override
+    public boolean hasActiveSession(final String guildId) {
+        return this.sessions.contains(guildId);
+    }
+
+    @Override
+    public void setSegmentListener(final SegmentListener segmentListener) {
+        this.segmentListener = segmentListener;
+    }
+
+    @Override
+    public CompletableFuture<String> sendAudioData(final String guildId, final byte[] audioData, final UtteranceTrace trace) {
+        if (!this.sessions.contains(guildId))
+            return null;
+
+        final var text = this.replies.apply(guildId, audioData);
+        final var listener = this.segmentListener;
+        if (text != null && listener != null)
+            listener.onSegment(guildId, text, trace);
+        return CompletableFuture.completedFuture(text != null ? text : "");
+    }
+
+    @Override
+    public int cancelTurns(final String guildId) {
+        this.cancelledTurns.computeIfAbsent(guildId, id -> new AtomicInteger()).incrementAndGet();
+        return 0;
+    }
+
+    // 返答が遮られた回数
+    int getCancelCount(final String guildId) {
+        final var count = this.cancelledTurns.get(guildId);
+        return count != null ? count.get() : 0;
+    }
+
+    @Override
+    public boolean isAudioResponse() {
+        return this.audioResponse;
+    }
+
+    @Override
+    public boolean isStreamingInput() {
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+package com.mumeinosato.audio;
+
+import com.mumeinosato.config.DiscordSymbol;
+import net.dv8tion.jda.api.audio.AudioReceiveHandler;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * JDA から受け取る 20ms フレーム（48kHz ステレオ）で発話区間の判定を確かめる。
+ * ハングオーバーと直前に残す無音の長さは {@link DiscordSymbol} の値に従う。
+ */
+class VoiceActivityDetectorTest {
+    private static final long FRAME_MILLISECONDS = 20;
+    private static final int CHANNELS = AudioReceiveHandler.OUTPUT_FORMAT.getChannels();
+    private static final int FRAME_SAMPLES = (int) (AudioReceiveHandler.OUTPUT_FORMAT.getFrameRate() * FRAME_MILLISECONDS / 1000);
+    private static final int FRAME_BYTES = SpeakerBuffer.bytesFor(AudioReceiveHandler.OUTPUT_FORMAT, FRAME_MILLISECONDS);
+    private static final int HANGOVER_FRAMES = (int) (DiscordSymbol.VAD_HANGOVER_MILLISECONDS / FRAME_MILLISECONDS);
+    private static final int PRE_ROLL_BYTES = SpeakerBuffer.bytesFor(AudioReceiveHandler.OUTPUT_FORMAT, DiscordSymbol.VAD_PRE_ROLL_MILLISECONDS);
+
+    private final VoiceActivityDetector detector = new VoiceActivityDetector(DiscordSymbol.VAD_HANGOVER_MILLISECONDS, FRAME_MILLISECONDS);
+
+    @Test
+    void silenceIsNeverSpeech() {
+        for (int i = 0; i < 50; i++)
+            assertFalse(this.detector.process(samples(silence()), CHANNELS));
+        assertFalse(this.detector.isLastFrameVoiced());
+    }
+
+    @Test
+    void toneStartsSpeechOnSecondFrame() {
+        // 1 フレームだけではクリック音と区別できないので、まだ発話とはしない
+        assertFalse(this.detector.process(samples(tone(0)), CHANNELS));
+        assertTrue(this.detector.isLastFrameVoiced());
+        assertTrue(this.detector.process(samples(tone(1)), CHANNELS));
+        assertTrue(this.detector.isSpeaking());
+    }
+
+    @Test
+    void singleLoudFrameIsNotSpeech() {
+        this.detector.process(samples(tone(0)), CHANNELS);
+        assertFalse(this.detector.process(samples(silence()), CHANNELS));
+        assertFalse(this.detector.process(samples(tone(2)), CHANNELS));
+    }
+
+    @Test
+    void quietNoiseIsNotSpeech() {
+        // -45dB 程度の白色雑音。ゼロ交差率が高いので発話とはしない
+        final var random = new Random(1);
+        for (int i = 0; i < 100; i++)
+            assertFalse(this.detector.process(samples(noise(random, 320)), CHANNELS), "frame " + i);
+    }
+
+    @Test
+    void toneIsDetectedOverSteadyNoise() {
+        final var random = new Random(2);
+        for (int i = 0; i < 100; i++)
+            this.detector.process(samples(noise(random, 320)), CHANNELS);
+
+        this.detector.process(samples(tone(0)), CHANNELS);
+        assertTrue(this.detector.process(samples(tone(1)), CHANNELS));
+    }
+
+    @Test
+    void speechEndsWhenHangoverExpires() {
+        for (int i = 0; i < 10; i++)
+            this.detector.process(samples(tone(i)), CHANNELS);
+        assertTrue(this.detector.isSpeaking());
+
+        // 400ms 分の無音フレームまでは発話中のまま
+        for (int i = 1; i < HANGOVER_FRAMES; i++) {
+            assertTrue(this.detector.process(samples(silence()), CHANNELS), "silent frame " + i);
+            assertFalse(this.detector.isLastFrameVoiced());
+        }
+        assertFalse(this.detector.process(samples(silence()), CHANNELS));
+    }
+
+    @Test
+    void voiceDuringHangoverExtendsSpeech() {
+        for (int i = 0; i < 10; i++)
+            this.detector.process(samples(tone(i)), CHANNELS);
+        for (int i = 1; i < HANGOVER_FRAMES; i++)
+            this.detector.process(samples(silence()), CHANNELS);
+
+        // 話し終わる直前にまた声が入ったら、ハングオーバーはやり直しになる
+        this.detector.process(samples(tone(0)), CHANNELS);
+        this.detector.process(samples(tone(1)), CHANNELS);
+        for (int i = 1; i < HANGOVER_FRAMES; i++)
+            assertTrue(this.detector.process(samples(silence()), CHANNELS), "silent frame " + i);
+        assertFalse(this.detector.process(samples(silence()), CHANNELS));
+    }
+
+    @Test
+    void speakerBufferKeepsPreRollBeforeSpeech() {
+        final var buffer = new SpeakerBuffer(AudioReceiveHandler.OUTPUT_FORMAT, null, new byte[FRAME_BYTES * 100]);
+        for (int i = 0; i < 20; i++)
+            assertEquals(0, buffer.append(silence()));
+        final var speech = 10;
+        for (int i = 0; i < speech; i++)
+            buffer.append(tone(i));
+        assertTrue(buffer.hasSpeech());
+        assertTrue(buffer.seal());
+
+        // 100ms 分の直前の音（無音と、発話と判定される前の 1 フレーム目）の後に、2 フレーム目以降が続く
+        final var slice = buffer.slice();
+        assertEquals(PRE_ROLL_BYTES + (speech - 1) * FRAME_BYTES, slice.remaining());
+        final var audio = new byte[slice.remaining()];
+        slice.get(audio);
+        assertArrayEquals(new byte[PRE_ROLL_BYTES - FRAME_BYTES], Arrays.copyOf(audio, PRE_ROLL_BYTES - FRAME_BYTES));
+        assertArrayEquals(tone(0), Arrays.copyOfRange(audio, PRE_ROLL_BYTES - FRAME_BYTES, PRE_ROLL_BYTES));
+    }
+
+    @Test
+    void speakerBufferIncludesHangoverButNotLaterSilence() {
+        final var buffer = new SpeakerBuffer(AudioReceiveHandler.OUTPUT_FORMAT, null, new byte[FRAME_BYTES * 100]);
+        final var speech = 10;
+        for (int i = 0; i < speech; i++)
+            buffer.append(tone(i));
+        for (int i = 0; i < HANGOVER_FRAMES * 2; i++)
+            buffer.append(silence());
+        assertTrue(buffer.seal());
+
+        // 発話の後ろは、ハングオーバーが切れる前の無音フレームまで
+        assertEquals((speech + HANGOVER_FRAMES - 1) * FRAME_BYTES, buffer.slice().remaining());
+    }
+
+    private static ShortBuffer samples(final byte[] frame) {
+        return ByteBuffer.wrap(frame).order(ByteOrder.BIG_ENDIAN).asShortBuffer();
+    }
+
+    private static byte[] silence() {
+        return new byte[FRAME_BYTES];
+    }
+
+    // 440Hz のサイン波。frame 番目のフレームとして位相をつなげる
+    private static byte[] tone(final int frame) {
+        final var buffer = ByteBuffer.allocate(FRAME_BYTES).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            final var t = (long) frame * FRAME_SAMPLES + i;
+            final var sample = (short) Math.round(6000 * Math.sin(2 * Math.PI * 440 * t / AudioReceiveHandler.OUTPUT_FORMAT.getFrameRate()));
+            for (int c = 0; c < CHANNELS; c++)
+                buffer.putShort(sample);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] noise(final Random random, final int amplitude) {
+        final var buffer = ByteBuffer.allocate(FRAME_BYTES).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            final var sample = (short) (random.nextInt(2 * amplitude + 1) - amplitude);
+            for (int c = 0; c < CHANNELS; c++)
+                buffer.putShort(sample);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,81 @@
+package com.mumeinosato.gemini;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SentenceSegmenterTest {
+    private final SentenceSegmenter segmenter = new SentenceSegmenter();
+
+    @Test
+    void splitsAtEveryTerminator() {
+        assertEquals(List.of("はい。", "本当！", "なぜ？", "Yes!", "No?", "改行"),
+                this.segmenter.append("はい。本当！なぜ？Yes!No?改行\n"));
+        assertTrue(this.segmenter.flush().isEmpty());
+    }
+
+    @Test
+    void sentenceSpanningChunksIsJoined() {
+        assertTrue(this.segmenter.append("今日は").isEmpty());
+        assertTrue(this.segmenter.append("いい天気").isEmpty());
+        assertEquals(List.of("今日はいい天気ですね。"), this.segmenter.append("ですね。明日"));
+        assertEquals(List.of("明日"), this.segmenter.flush());
+    }
+
+    @Test
+    void commaSplitsOnlyLongClauses() {
+        // 「、」を含めて 11 文字では区切らない
+        assertTrue(this.segmenter.append("あいうえおかきくけこ、").isEmpty());
+        this.segmenter.reset();
+
+        // 12 文字になったら区切る
+        assertEquals(List.of("あいうえおかきくけこさ、"), this.segmenter.append("あいうえおかきくけこさ、"));
+    }
+
+    @Test
+    void shortClausesAreJoinedUntilLongEnough() {
+        assertEquals(List.of("はい、そうです、わかりました、"), this.segmenter.append("はい、そうです、わかりました、それでは"));
+        assertEquals(List.of("それでは"), this.segmenter.flush());
+    }
+
+    @Test
+    void longTextWithoutBreakIsCutAtFiftyCharacters() {
+        final var text = "あ".repeat(120);
+        final var segments = new ArrayList<>(this.segmenter.append(text));
+        segments.addAll(this.segmenter.flush());
+
+        assertEquals(List.of("あ".repeat(50), "あ".repeat(50), "あ".repeat(20)), segments);
+    }
+
+    @Test
+    void leadingClosersAndWhitespaceAreDropped() {
+        this.segmenter.append("「そうだね。");
+        // 前の文の閉じ括弧や続きの記号から始まる文
+        assertEquals(List.of("次の文。"), this.segmenter.append("」、 次の文。"));
+    }
+
+    @Test
+    void whitespaceOnlyTextIsNotEmitted() {
+        assertTrue(this.segmenter.append("  \n\n ").isEmpty());
+        assertTrue(this.segmenter.flush().isEmpty());
+    }
+
+    @Test
+    void flushEmitsRemainderOnce() {
+        this.segmenter.append("途中まで");
+        assertEquals(List.of("途中まで"), this.segmenter.flush());
+        assertTrue(this.segmenter.flush().isEmpty());
+    }
+
+    @Test
+    void resetDiscardsPendingText() {
+        this.segmenter.append("取り消された返答");
+        this.segmenter.reset();
+
+        assertTrue(this.segmenter.flush().isEmpty());
+        assertEquals(List.of("新しい返答。"), this.segmenter.append("新しい返答。"));
+    }
+}
@@ -0,0 +1,184 @@
+package com.mumeinosato.tts;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TtsCacheTest {
+    private static final int ENTRY_BYTES = 100;
+
+    private Path directory;
+    private TtsCache cache;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        this.directory = Files.createTempDirectory("tts-cache-test");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        if (this.cache != null)
+            this.cache.shutdown();
+        try (var files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    // メモリには 3 件、ディスクには diskEntries 件まで
+    private TtsCache cache(final int diskEntries) {
+        this.cache = new TtsCache(3 * ENTRY_BYTES, (long) diskEntries * ENTRY_BYTES, ENTRY_BYTES, this.directory);
+        return this.cache;
+    }
+
+    @Test
+    void memoryHitReturnsStoredAudio() {
+        final var cache = this.cache(4);
+        cache.put("a", audio(1));
+
+        assertArrayEquals(audio(1), bytes(cache.get("a")));
+        assertTrue(cache.get("a").isReadOnly());
+        assertEquals(2L, cache.getMemoryHits());
+        assertNull(cache.get("b"));
+        assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    void leastRecentlyUsedEntrySpillsToDisk() throws Exception {
+        final var cache = this.cache(4);
+        cache.put("a", audio(1));
+        cache.put("b", audio(2));
+        cache.put("c", audio(3));
+        // a を使ったので、最も古いのは b になる
+        cache.get("a");
+        cache.put("d", audio(4));
+        cache.awaitFileOperations();
+
+        assertEquals(3L * ENTRY_BYTES, cache.getMemoryBytes());
+        assertEquals(ENTRY_BYTES, cache.getDiskBytes());
+        assertTrue(Files.exists(this.directory.resolve("b.wav")));
+        assertFalse(Files.exists(this.directory.resolve("a.wav")));
+    }
+
+    @Test
+    void diskHitIsServedFromMappedFile() throws Exception {
+        final var cache = this.cache(4);
+        for (int i = 1; i <= 4; i++)
+            cache.put("k" + i, audio(i));
+        cache.awaitFileOperations();
+
+        final var reloaded = cache.get("k1");
+        assertInstanceOf(MappedByteBuffer.class, reloaded);
+        assertArrayEquals(audio(1), bytes(reloaded));
+        assertEquals(1L, cache.getDiskHits());
+        // メモリには戻さないので、メモリ上の音声は押し出されない
+        assertEquals(3L * ENTRY_BYTES, cache.getMemoryBytes());
+        assertEquals(ENTRY_BYTES, cache.getDiskBytes());
+    }
+
+    @Test
+    void entryIsServedWhileBeingSpilled() {
+        final var cache = this.cache(4);
+        for (int i = 1; i <= 4; i++)
+            cache.put("k" + i, audio(i));
+
+        // 書き出しが終わっていなくても見つかる
+        assertArrayEquals(audio(1), bytes(cache.get("k1")));
+    }
+
+    @Test
+    void diskLimitDeletesOldestFiles() throws Exception {
+        final var cache = this.cache(1);
+        for (int i = 1; i <= 5; i++)
+            cache.put("k" + i, audio(i));
+        cache.awaitFileOperations();
+
+        assertEquals(ENTRY_BYTES, cache.getDiskBytes());
+        assertEquals(1L, cache.getEvictions());
+        assertFalse(Files.exists(this.directory.resolve("k1.wav")));
+        assertTrue(Files.exists(this.directory.resolve("k2.wav")));
+        assertNull(cache.get("k1"));
+    }
+
+    @Test
+    void putAgainReplacesDiskEntry() throws Exception {
+        final var cache = this.cache(4);
+        for (int i = 1; i <= 4; i++)
+            cache.put("k" + i, audio(i));
+        cache.awaitFileOperations();
+
+        cache.put("k1", audio(9));
+        cache.awaitFileOperations();
+
+        assertArrayEquals(audio(9), bytes(cache.get("k1")));
+        assertFalse(Files.exists(this.directory.resolve("k1.wav")));
+    }
+
+    @Test
+    void spilledEntriesSurviveRestart() throws Exception {
+        final var cache = this.cache(4);
+        for (int i = 1; i <= 4; i++)
+            cache.put("k" + i, audio(i));
+        cache.awaitFileOperations();
+        cache.shutdown();
+        // 書き出し途中で終了したファイルは使わずに消す
+        Files.write(this.directory.resolve("broken.part"), audio(7));
+
+        final var restarted = this.cache(4);
+        assertArrayEquals(audio(1), bytes(restarted.get("k1")));
+        assertEquals(ENTRY_BYTES, restarted.getDiskBytes());
+        assertFalse(Files.exists(this.directory.resolve("broken.part")));
+    }
+
+    @Test
+    void oversizedEntryIsNotCached() {
+        final var cache = this.cache(4);
+        cache.put("big", new byte[ENTRY_BYTES + 1]);
+
+        assertNull(cache.get("big"));
+        assertEquals(0L, cache.getMemoryBytes());
+    }
+
+    @Test
+    void recordedStreamIsCachedOnlyWhenReadToTheEnd() throws IOException {
+        final var cache = this.cache(4);
+        try (var stream = cache.record("full", new ByteArrayInputStream(audio(1)))) {
+            stream.readAllBytes();
+        }
+        try (var stream = cache.record("partial", new ByteArrayInputStream(audio(2)))) {
+            stream.read(new byte[10]);
+        }
+
+        assertArrayEquals(audio(1), bytes(cache.get("full")));
+        assertNull(cache.get("partial"));
+    }
+
+    @Test
+    void keyNormalizesTextAndDependsOnVoice() {
+        final var cache = this.cache(4);
+        assertEquals(cache.key("こんにちは  世界", "v1"), cache.key(" こんにちは 世界 ", "v1"));
+        assertNotEquals(cache.key("こんにちは", "v1"), cache.key("こんにちは", "v2"));
+    }
+
+    private static byte[] audio(final int seed) {
+        final var audio = new byte[ENTRY_BYTES];
+        for (int i = 0; i < audio.length; i++)
+            audio[i] = (byte) (seed * 31 + i);
+        return audio;
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final var bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,152 @@
+package com.mumeinosato.tts;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TtsClientTest {
+    private HttpServer server;
+    private String url;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+        this.url = "http://localhost:" + this.server.getAddress().getPort() + "/tts";
+    }
+
+    @AfterEach
+    void stopServer() {
+        this.server.stop(0);
+    }
+
+    private TtsClient client(final long requestTimeoutMillis) {
+        return new TtsClient(this.url, 1000, requestTimeoutMillis, HttpClient.Version.HTTP_1_1);
+    }
+
+    // AudioProcessor と同じく、ストリームを開いて最後まで読む
+    private static byte[] readAll(final TtsClient client, final String text) throws IOException, InterruptedException {
+        try (var stream = client.openStream(text)) {
+            return stream.readAllBytes();
+        }
+    }
+
+    @Test
+    void sendsTextAsUtf8PostBody() throws Exception {
+        final var method = new AtomicReference<String>();
+        final var contentType = new AtomicReference<String>();
+        final var body = new AtomicReference<String>();
+        this.server.createContext("/tts", exchange -> {
+            method.set(exchange.getRequestMethod());
+            contentType.set(exchange.getRequestHeaders().getFirst("Content-Type"));
+            body.set(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            final var audio = new byte[]{1, 2, 3, 4};
+            exchange.sendResponseHeaders(200, audio.length);
+            exchange.getResponseBody().write(audio);
+            exchange.close();
+        });
+
+        final var audio = readAll(this.client(1000), "こんにちは、元気？");
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, audio);
+        assertEquals("POST", method.get());
+        assertEquals("text/plain; charset=UTF-8", contentType.get());
+        assertEquals("こんにちは、元気？", body.get());
+    }
+
+    @Test
+    void streamsBodyBeforeResponseCompletes() throws Exception {
+        final var firstChunkRead = new CountDownLatch(1);
+        this.server.createContext("/tts", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, 0);
+            final var out = exchange.getResponseBody();
+            out.write(new byte[]{1, 2});
+            out.flush();
+            try {
+                // クライアントが先頭を読むまで残りを送らない
+                firstChunkRead.await(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.write(new byte[]{3, 4});
+            exchange.close();
+        });
+
+        try (var stream = this.client(1000).openStream("テスト")) {
+            assertEquals(1, stream.read());
+            assertEquals(2, stream.read());
+            firstChunkRead.countDown();
+            assertArrayEquals(new byte[]{3, 4}, stream.readAllBytes());
+        }
+    }
+
+    @Test
+    void reusesConnectionAcrossCalls() throws Exception {
+        // 接続ごとにクライアント側のポートが変わる
+        final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<>());
+        this.server.createContext("/tts", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            exchange.sendResponseHeaders(200, 1);
+            exchange.getResponseBody().write(0);
+            exchange.close();
+        });
+
+        final var client = this.client(1000);
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(new byte[]{0}, readAll(client, "テスト"));
+
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    void failsOnErrorStatus() {
+        this.server.createContext("/tts", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+
+        final var client = this.client(1000);
+        final var e = assertThrows(IOException.class, () -> client.openStream("テスト"));
+        assertTrue(e.getMessage().contains("500"), e.getMessage());
+    }
+
+    @Test
+    void timesOutWhenServerDoesNotRespond() {
+        final var release = new CountDownLatch(1);
+        this.server.createContext("/tts", exchange -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+
+        try {
+            assertThrows(HttpTimeoutException.class, () -> this.client(200).openStream("テスト"));
+        } finally {
+            release.countDown();
+        }
+    }
+}